@@ -11,22 +11,65 @@ package com.hyperdrive.hyperlib;
 import edu.wpi.first.apriltag.AprilTagDetection;
 import edu.wpi.first.apriltag.AprilTagDetector;
 import edu.wpi.first.apriltag.AprilTagDetector.Config;
+import edu.wpi.first.apriltag.AprilTagFieldLayout;
 import edu.wpi.first.apriltag.AprilTagPoseEstimator;
 import edu.wpi.first.cameraserver.CameraServer;
 import edu.wpi.first.cscore.CvSink;
 import edu.wpi.first.cscore.CvSource;
 import edu.wpi.first.cscore.UsbCamera;
+import edu.wpi.first.cscore.VideoSink;
+import edu.wpi.first.cscore.VideoSource;
+import edu.wpi.first.math.geometry.Pose3d;
 import edu.wpi.first.math.geometry.Transform3d;
+import edu.wpi.first.util.WPIUtilJNI;
+import edu.wpi.first.wpilibj.RobotController;
 import edu.wpi.first.wpilibj.Timer;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
 
-/** Provides an easy interface to detect apriltags in one function call. */
-public class AprilTagFinder {
+/**
+ * Provides an easy interface to detect apriltags in one function call.
+ *
+ * <p>The finder has a small lifecycle: {@link #start()} it in robotInit(), {@link #pause()} or
+ * {@link #idle()} it whenever the robot doesn't need vision (i.e in disabledInit()), {@link
+ * #resume()} it when vision is needed again, and {@link #close()} it to release the camera, the
+ * detector and the Mats.
+ *
+ * <p>When given an {@link AprilTagFieldLayout}, the finder also solves for the robot's pose on the
+ * field from every visible tag once per frame, see {@link MultiTagPoseSolver}.
+ *
+ * <p>Instead of polling the getters, consumers can {@link #subscribe(Consumer,
+ * DetectionSubscription.Backpressure)} to receive a {@link DetectionResult} for every frame.
+ *
+ * <p>Every frame is timestamped with its capture time in the FPGA time base (the same as
+ * Timer.getFPGATimestamp()), frames older than {@link #setMaxFrameAge(double)} are skipped
+ * instead of published, and {@link #getFrameAge()} and {@link #getPipelineDelay()} tell how old
+ * the published results are.
+ */
+public class AprilTagFinder implements AutoCloseable {
+
+    /** The lifecycle states of an AprilTagFinder */
+    public enum State {
+        /** created, but the vision thread has not been started yet */
+        NEW,
+        /** grabbing and detecting at the full camera rate */
+        RUNNING,
+        /** grabbing and detecting at the idle rate, see {@link #setIdleFps(double)} */
+        IDLE,
+        /** not grabbing or detecting at all, the thread is parked until resumed */
+        PAUSED,
+        /** the thread has stopped and every resource has been released */
+        CLOSED
+    }
 
     // by running vision processing in a separate thread, we can avoid blocking the main thread, and
     // boost performance over single-threaded
@@ -38,10 +81,30 @@ public class AprilTagFinder {
     private final String family;
     private final AprilTagPoseEstimator.Config poseEstimatorConfig;
     private final boolean printStatements;
+    private final AprilTagFieldLayout fieldLayout;
+    private final Transform3d cameraToRobot;
+
+    // guards state changes, the vision thread waits on it while paused or idling
+    private final Object stateLock = new Object();
+    private volatile State state = State.NEW;
+    private volatile double idleFps = 0.0;
+    private volatile WorkerThreadConfig threadConfig = WorkerThreadConfig.DEFAULT;
+    private volatile double maxFrameAge = Double.POSITIVE_INFINITY;
 
-    private volatile int tagID;
     private volatile int detectionsPerSecond;
-    private volatile Transform3d pose;
+    private volatile double visionLoad;
+    // the getters read everything from one of these, so their values always come from the same
+    // frame: the last published frame with a tag in it, and the last one a robot pose was solved in
+    private volatile DetectionResult lastResult;
+    private volatile DetectionResult lastRobotPoseResult;
+    private volatile long staleFrameCount;
+
+    // only used by the vision thread, to measure the load and detection rate over one second
+    private long busyNanos;
+    private long loadWindowStartNanos;
+    private int detectionCount;
+
+    private final List<DetectionSubscription> subscriptions = new CopyOnWriteArrayList<>();
 
     /**
      * Creates a new AprilTagFinder
@@ -62,6 +125,43 @@ public class AprilTagFinder {
             String family,
             AprilTagPoseEstimator.Config poseEstimatorConfig,
             boolean printStatements) {
+        this(
+                cameraID,
+                width,
+                height,
+                fps,
+                family,
+                poseEstimatorConfig,
+                null,
+                null,
+                printStatements);
+    }
+
+    /**
+     * Creates a new AprilTagFinder that also solves for the robot's pose on the field
+     *
+     * @param cameraID - the ID of the camera to use, for example 0 for the first camera
+     * @param width - the width of the camera feed in pixels (4:3 aspect ratio is reccomended)
+     * @param height - the height of the camera feed in pixels (4:3 aspect ratio is reccomended)
+     * @param fps - the framerate of the camera feed (30 is reccomended)
+     * @param family - the family of AprilTags to detect, for example "tag36h11"
+     * @param poseEstimatorConfig - the configuration for the pose estimator, its camera intrinsics
+     *     are also used by the field pose solver
+     * @param fieldLayout - the layout of the AprilTags on the field, i.e
+     *     AprilTagFields.kDefaultField.loadAprilTagLayoutField(), null to skip the field pose solve
+     * @param cameraToRobot - the transform from the camera to the center of the robot
+     * @param printStatements - whether or not to print statements to the console
+     */
+    public AprilTagFinder(
+            int cameraID,
+            int width,
+            int height,
+            int fps,
+            String family,
+            AprilTagPoseEstimator.Config poseEstimatorConfig,
+            AprilTagFieldLayout fieldLayout,
+            Transform3d cameraToRobot,
+            boolean printStatements) {
         this.printStatements = printStatements;
         this.cameraID = cameraID;
         this.width = width;
@@ -69,6 +169,17 @@ public class AprilTagFinder {
         this.fps = fps;
         this.family = family;
         this.poseEstimatorConfig = poseEstimatorConfig;
+        this.fieldLayout = fieldLayout;
+        this.cameraToRobot = cameraToRobot == null ? new Transform3d() : cameraToRobot;
+    }
+
+    /**
+     * Creates and starts the vision thread, this method should be called in robotInit(). It is
+     * the same as calling startDetection() and then startThread().
+     */
+    public void start() {
+        startDetection();
+        startThread();
     }
 
     /**
@@ -76,8 +187,22 @@ public class AprilTagFinder {
      * startDetection() beforehand.
      */
     public void startThread() {
-        visionThread.setDaemon(true);
-        visionThread.start();
+        synchronized (stateLock) {
+            if (state == State.CLOSED) {
+                throw new IllegalStateException("AprilTagFinder has already been closed");
+            }
+            if (visionThread == null) {
+                throw new IllegalStateException("startDetection() must be called first");
+            }
+            if (visionThread.isAlive()) {
+                return;
+            }
+            if (state == State.NEW) {
+                state = State.RUNNING;
+            }
+            visionThread.setDaemon(true);
+            visionThread.start();
+        }
     }
 
     /**
@@ -85,145 +210,522 @@ public class AprilTagFinder {
      * call startThread() afterwards.
      */
     public void startDetection() {
-        visionThread =
-                new Thread(
-                        () -> {
-                            UsbCamera camera = CameraServer.startAutomaticCapture(cameraID);
-                            camera.setResolution(width, height);
-                            camera.setFPS(fps);
-                            CvSink sink = CameraServer.getVideo();
-                            CvSource outputStream =
-                                    CameraServer.putVideo("AprilTagDetection", width, height);
-
-                            // Mat's are memory expensive, its better to re-use them instead of
-                            // allocating new ones
-                            // but for now we will be using two.
-                            Mat mat = new Mat();
-                            Mat grayMat = new Mat();
-
-                            // Points needed to draw square around detected AprilTag
-                            Point pt0 = new Point();
-                            Point pt1 = new Point();
-                            Point pt2 = new Point();
-                            Point pt3 = new Point();
-                            Point center = new Point();
-
-                            Scalar red =
-                                    new Scalar(
-                                            0, 0,
-                                            255); // instead of following the RGB color scheme,
-                            // OpenCV uses BGR
-                            Scalar green = new Scalar(0, 255, 0);
-
-                            AprilTagDetector aprilTagDetector = new AprilTagDetector();
-                            Config config = aprilTagDetector.getConfig();
-                            config.quadSigma =
-                                    0.8f; // quadSigma affects the blurring of the image before
-                            // detection,
-                            // higher = more blurring (smooth edges, better for lower contrast, less
-                            // sensitive to noise),
-                            // lower = less blurring (sharp corners or edges, better for high
-                            // contrast, more sensitive to noise).
-
-                            aprilTagDetector.setConfig(config);
-
-                            var quadThreshParams = aprilTagDetector.getQuadThresholdParameters();
-                            quadThreshParams.minClusterPixels = 400;
-                            quadThreshParams.criticalAngle *= 5; // default is 10
-                            quadThreshParams.maxLineFitMSE *= 1.5;
-                            aprilTagDetector.setQuadThresholdParameters(quadThreshParams);
-
-                            // the AprilTagDetector only detects one AprilTag family at a time, to
-                            // detect multiple families, use multiple AprilTagDetectors
-                            // of course, this comes at an expensive cost to performance.
-                            aprilTagDetector.addFamily(family);
-
-                            Timer timer = new Timer();
-                            timer.start();
-                            int count = 0;
-
-                            // This can never be true, for it to be true the robot must be off, or
-                            // the program must be stopped/killed.
-                            while (!Thread.interrupted()) {
-                                if (sink.grabFrame(mat) == 0) {
-                                    outputStream.notifyError(sink.getError());
-                                    continue;
-                                }
-
-                                // convert mat to grayscale
-                                Imgproc.cvtColor(mat, grayMat, Imgproc.COLOR_BGR2GRAY);
-
-                                AprilTagDetection[] results = aprilTagDetector.detect(grayMat);
-                                AprilTagPoseEstimator poseEstimator =
-                                        new AprilTagPoseEstimator(poseEstimatorConfig);
-                                // Using HashSet to avoid duplicate tags, and improve performance
-                                var set = new HashSet<>();
-
-                                for (var result : results) {
-                                    count += 1;
-                                    pt0.x = result.getCornerX(0);
-                                    pt1.x = result.getCornerX(1);
-                                    pt2.x = result.getCornerX(2);
-                                    pt3.x = result.getCornerX(3);
-
-                                    pt0.y = result.getCornerY(0);
-                                    pt1.y = result.getCornerY(1);
-                                    pt2.y = result.getCornerY(2);
-                                    pt3.y = result.getCornerY(3);
-
-                                    center.x = result.getCenterX();
-                                    center.y = result.getCenterY();
-
-                                    set.add(result.getId());
-                                    tagID = result.getId();
-
-                                    pose = poseEstimator.estimate(result);
-
-                                    // draw square around detected AprilTag
-                                    Imgproc.line(mat, pt0, pt1, red, 5);
-                                    Imgproc.line(mat, pt1, pt2, red, 5);
-                                    Imgproc.line(mat, pt2, pt3, red, 5);
-                                    Imgproc.line(mat, pt3, pt0, red, 5);
-
-                                    Imgproc.circle(mat, center, 4, green);
-                                    // display id (number) of the tag
-                                    Imgproc.putText(
-                                            mat,
-                                            String.valueOf(result.getId()),
-                                            pt2,
-                                            Imgproc.FONT_HERSHEY_COMPLEX,
-                                            2,
-                                            green,
-                                            7);
-                                }
-
-                                for (var id : set) {
-                                    if (printStatements) {
-                                        System.out.println("Tag: " + String.valueOf(id));
-                                    }
-                                }
-
-                                if (timer.advanceIfElapsed(1.0)) {
-                                    detectionsPerSecond = count;
-                                    if (printStatements) {
-                                        System.out.println(
-                                                "detections per second: " + String.valueOf(count));
-                                    }
-                                    count = 0;
-                                }
-
-                                outputStream.putFrame(mat);
-                            }
-                            // if you do not close the detector, it will cause a memory leak
-                            aprilTagDetector.close();
-                        });
-        // visionThread.setDaemon(true);
-        // visionThread.start();
+        synchronized (stateLock) {
+            if (visionThread == null) {
+                visionThread = new Thread(this::runVision, "AprilTagFinder");
+            }
+        }
+    }
+
+    /**
+     * Stops grabbing and detecting until {@link #resume()} is called. The camera sink is disabled
+     * while paused, so the vision thread doesn't use any CPU.
+     */
+    public void pause() {
+        setState(State.PAUSED);
+    }
+
+    /**
+     * Drops the vision thread to the idle rate set by {@link #setIdleFps(double)}. With an idle
+     * rate of 0 this is the same as {@link #pause()}.
+     */
+    public void idle() {
+        setState(State.IDLE);
+    }
+
+    /** Goes back to grabbing and detecting at the full camera rate after pause() or idle(). */
+    public void resume() {
+        setState(State.RUNNING);
+    }
+
+    /**
+     * Sets how many frames per second are processed while idling, 0 (the default) stops grabbing
+     * entirely.
+     *
+     * @param idleFps - the idle framerate, for example 2 to keep a slow look out for tags while
+     *     disabled
+     */
+    public void setIdleFps(double idleFps) {
+        if (idleFps < 0) {
+            throw new IllegalArgumentException("idleFps must not be negative");
+        }
+        synchronized (stateLock) {
+            this.idleFps = idleFps;
+            stateLock.notifyAll();
+        }
+    }
+
+    /**
+     * Sets the priority and CPU affinity of the vision thread, and of the subscriber threads
+     * created after this call. Can be called while the thread is running, it takes effect on the
+     * next frame.
+     *
+     * @param threadConfig - i.e new WorkerThreadConfig(false, 10, 1) to run vision at a lower
+     *     priority on the second core
+     */
+    public void setThreadConfig(WorkerThreadConfig threadConfig) {
+        this.threadConfig = threadConfig;
+    }
+
+    /**
+     * Sets how old a frame may get before it is skipped. A frame is checked when it is grabbed,
+     * and again before its results are published, so the getters and subscribers never see a
+     * result older than this.
+     *
+     * @param seconds - the max age of a frame, i.e 0.1 for aiming, Double.POSITIVE_INFINITY (the
+     *     default) never skips a frame
+     */
+    public void setMaxFrameAge(double seconds) {
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("max frame age must be positive");
+        }
+        maxFrameAge = seconds;
+    }
+
+    /** @return - the current lifecycle state */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Stops the vision thread and releases the camera, the detector and the Mats. A closed
+     * AprilTagFinder can not be started again.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (stateLock) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            state = State.CLOSED;
+            stateLock.notifyAll();
+            thread = visionThread;
+        }
+        for (var subscription : subscriptions) {
+            subscription.close();
+        }
+        subscriptions.clear();
+        if (thread == null || !thread.isAlive()) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            // grabFrame() times out after a fraction of a second, so this should never take long
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Subscribes to the results of every frame, the callback runs on its own daemon thread.
+     *
+     * @param callback - called with the result of every frame that isn't dropped
+     * @param backpressure - what to do with new frames while the callback is still busy, use
+     *     LATEST_ONLY if you only ever care about the newest frame. BOUNDED_QUEUE needs a queue
+     *     capacity, use {@link #subscribe(Consumer, DetectionSubscription.Backpressure, int,
+     *     Executor)} for it
+     * @return - the subscription, close it to unsubscribe
+     */
+    public DetectionSubscription subscribe(
+            Consumer<DetectionResult> callback, DetectionSubscription.Backpressure backpressure) {
+        if (backpressure == DetectionSubscription.Backpressure.BOUNDED_QUEUE) {
+            throw new IllegalArgumentException(
+                    "BOUNDED_QUEUE needs a queue capacity, use the overload that takes one");
+        }
+        return subscribe(callback, backpressure, 1, null);
+    }
+
+    /**
+     * Subscribes to the results of every frame
+     *
+     * @param callback - called with the result of every frame that isn't dropped
+     * @param backpressure - what to do with new frames while the callback is still busy
+     * @param queueCapacity - how many frames may wait for the callback with BOUNDED_QUEUE
+     * @param executor - the executor the callback runs on, i.e a shared thread pool, or null for a
+     *     dedicated daemon thread using the finder's thread config. It is handed work from the
+     *     vision thread, so it must neither run tasks inline (i.e Runnable::run, or a
+     *     CallerRunsPolicy) nor block when it is busy, or detection stalls with it
+     * @return - the subscription, close it to unsubscribe
+     */
+    public DetectionSubscription subscribe(
+            Consumer<DetectionResult> callback,
+            DetectionSubscription.Backpressure backpressure,
+            int queueCapacity,
+            Executor executor) {
+        if (state == State.CLOSED) {
+            throw new IllegalStateException("AprilTagFinder has already been closed");
+        }
+        var subscription =
+                new DetectionSubscription(
+                        callback, backpressure, queueCapacity, executor, threadConfig);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /** Hands the same result to every subscriber, without ever waiting on one. */
+    private void publish(DetectionResult result) {
+        for (var subscription : subscriptions) {
+            if (subscription.isClosed()) {
+                subscriptions.remove(subscription);
+            } else {
+                subscription.offer(result);
+            }
+        }
+    }
+
+    private void setState(State next) {
+        synchronized (stateLock) {
+            if (state == State.CLOSED) {
+                throw new IllegalStateException("AprilTagFinder has already been closed");
+            }
+            // pausing before the thread has started is allowed, the thread then starts paused
+            if (state == State.NEW && next == State.RUNNING) {
+                return;
+            }
+            state = next;
+            stateLock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks while paused (or idling with an idle rate of 0).
+     *
+     * @return - false if the finder was closed or the thread was interrupted while waiting
+     */
+    private boolean awaitActive(CvSink sink) {
+        synchronized (stateLock) {
+            if (!isParked()) {
+                return state != State.CLOSED;
+            }
+            // with the sink disabled cscore stops pulling frames off the camera for us
+            sink.setEnabled(false);
+            // nothing is processed while parked, don't leave the last second's numbers behind
+            resetLoad();
+            try {
+                while (isParked()) {
+                    stateLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (state == State.CLOSED) {
+                return false;
+            }
+            sink.setEnabled(true);
+            // the time spent parked doesn't count towards the next load window
+            resetLoad();
+            return true;
+        }
+    }
+
+    /** Publishes the load and detection rate once a second has passed since the last update. */
+    private void updateLoad() {
+        long now = System.nanoTime();
+        if (now - loadWindowStartNanos < 1_000_000_000L) {
+            return;
+        }
+        visionLoad = (double) busyNanos / (now - loadWindowStartNanos);
+        detectionsPerSecond = detectionCount;
+        if (printStatements) {
+            System.out.println("detections per second: " + String.valueOf(detectionCount));
+        }
+        busyNanos = 0;
+        detectionCount = 0;
+        loadWindowStartNanos = now;
+    }
+
+    /** Zeroes the load and detection rate, and starts a new window from now. */
+    private void resetLoad() {
+        visionLoad = 0;
+        detectionsPerSecond = 0;
+        busyNanos = 0;
+        detectionCount = 0;
+        loadWindowStartNanos = System.nanoTime();
+    }
+
+    private boolean isParked() {
+        return state == State.PAUSED || (state == State.IDLE && idleFps <= 0);
+    }
+
+    /** Sleeps off the rest of the idle period, returns early on resume() or close(). */
+    private void awaitIdlePeriod(long frameStartNanos) {
+        synchronized (stateLock) {
+            try {
+                while (state == State.IDLE && idleFps > 0) {
+                    long periodNanos = (long) (1e9 / idleFps);
+                    long remainingMillis =
+                            (frameStartNanos + periodNanos - System.nanoTime()) / 1_000_000;
+                    if (remainingMillis <= 0) {
+                        return;
+                    }
+                    stateLock.wait(remainingMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Creates the detector the vision thread uses, this is shared with the detector regression
+     * tests so they always exercise the same settings as the robot.
+     *
+     * @param family - the family of AprilTags to detect, for example "tag36h11"
+     * @return - the detector, it must be closed once it is no longer needed
+     */
+    static AprilTagDetector createDetector(String family) {
+        AprilTagDetector aprilTagDetector = new AprilTagDetector();
+        Config config = aprilTagDetector.getConfig();
+        // quadSigma affects the blurring of the image before detection,
+        // higher = more blurring (smooth edges, better for lower contrast, less sensitive to
+        // noise),
+        // lower = less blurring (sharp corners or edges, better for high contrast, more sensitive
+        // to noise).
+        config.quadSigma = 0.8f;
+
+        aprilTagDetector.setConfig(config);
+
+        var quadThreshParams = aprilTagDetector.getQuadThresholdParameters();
+        quadThreshParams.minClusterPixels = 400;
+        quadThreshParams.criticalAngle *= 5; // default is 10
+        quadThreshParams.maxLineFitMSE *= 1.5;
+        aprilTagDetector.setQuadThresholdParameters(quadThreshParams);
+
+        // the AprilTagDetector only detects one AprilTag family at a time, to detect multiple
+        // families, use multiple AprilTagDetectors
+        // of course, this comes at an expensive cost to performance.
+        aprilTagDetector.addFamily(family);
+        return aprilTagDetector;
+    }
+
+    private void runVision() {
+        // everything below is created inside the try, so a failure part way through setup still
+        // releases whatever was already created
+        UsbCamera camera = null;
+        CvSink sink = null;
+        CvSource outputStream = null;
+        AprilTagDetector aprilTagDetector = null;
+        MultiTagPoseSolver poseSolver = null;
+
+        // Mat's are memory expensive, its better to re-use them instead of allocating new ones
+        // but for now we will be using two.
+        Mat mat = new Mat();
+        Mat grayMat = new Mat();
+
+        // Points needed to draw square around detected AprilTag
+        Point pt0 = new Point();
+        Point pt1 = new Point();
+        Point pt2 = new Point();
+        Point pt3 = new Point();
+        Point center = new Point();
+
+        // instead of following the RGB color scheme, OpenCV uses BGR
+        Scalar red = new Scalar(0, 0, 255);
+        Scalar green = new Scalar(0, 255, 0);
+
+        try {
+            camera = CameraServer.startAutomaticCapture(cameraID);
+            camera.setResolution(width, height);
+            camera.setFPS(fps);
+            sink = CameraServer.getVideo(camera);
+            outputStream = CameraServer.putVideo("AprilTagDetection", width, height);
+
+            aprilTagDetector = createDetector(family);
+            // the field-frame tag corners are computed once here, instead of every frame
+            if (fieldLayout != null) {
+                poseSolver =
+                        new MultiTagPoseSolver(
+                                fieldLayout, cameraToRobot, poseEstimatorConfig, 5.0);
+            }
+            AprilTagPoseEstimator poseEstimator = new AprilTagPoseEstimator(poseEstimatorConfig);
+
+            long frameNumber = 0;
+            resetLoad();
+            WorkerThreadConfig appliedThreadConfig = null;
+
+            long frameStartNanos = System.nanoTime();
+
+            // runs until close() is called, or the program is stopped/killed.
+            while (!Thread.currentThread().isInterrupted()) {
+                // idling paces every pass, so stale frames and grab errors don't spin at the full
+                // camera rate either
+                if (state == State.IDLE) {
+                    awaitIdlePeriod(frameStartNanos);
+                }
+                if (!awaitActive(sink)) {
+                    break;
+                }
+                // every pass updates the load, including the ones that never get to detection
+                updateLoad();
+                // priority and affinity can only be set by the thread itself
+                WorkerThreadConfig nextThreadConfig = threadConfig;
+                if (nextThreadConfig != appliedThreadConfig) {
+                    nextThreadConfig.applyToCurrentThread();
+                    appliedThreadConfig = nextThreadConfig;
+                }
+                frameStartNanos = System.nanoTime();
+
+                // the time the frame was captured, in microseconds
+                long frameTime = sink.grabFrame(mat);
+                if (frameTime == 0) {
+                    outputStream.notifyError(sink.getError());
+                    continue;
+                }
+                long busyStartNanos = System.nanoTime();
+
+                // cscore stamps frames with wpi::Now(), which isn't the FPGA clock in simulation
+                long clockOffset = RobotController.getFPGATime() - WPIUtilJNI.now();
+                double captureTimestamp = (frameTime + clockOffset) / 1e6;
+                if (Timer.getFPGATimestamp() - captureTimestamp > maxFrameAge) {
+                    staleFrameCount++;
+                    continue;
+                }
+
+                // convert mat to grayscale
+                Imgproc.cvtColor(mat, grayMat, Imgproc.COLOR_BGR2GRAY);
+
+                AprilTagDetection[] results = aprilTagDetector.detect(grayMat);
+
+                // one solve from every visible tag, warm-started from the last frame
+                Pose3d solved = null;
+                int solvedTagCount = 0;
+                if (poseSolver != null) {
+                    solved = poseSolver.solve(results);
+                    solvedTagCount = poseSolver.getLastTagCount();
+                }
+
+                // Using HashSet to avoid duplicate tags, and improve performance
+                var set = new HashSet<>();
+                var tags = new ArrayList<DetectionResult.Tag>(results.length);
+
+                for (var result : results) {
+                    detectionCount += 1;
+                    pt0.x = result.getCornerX(0);
+                    pt1.x = result.getCornerX(1);
+                    pt2.x = result.getCornerX(2);
+                    pt3.x = result.getCornerX(3);
+
+                    pt0.y = result.getCornerY(0);
+                    pt1.y = result.getCornerY(1);
+                    pt2.y = result.getCornerY(2);
+                    pt3.y = result.getCornerY(3);
+
+                    center.x = result.getCenterX();
+                    center.y = result.getCenterY();
+
+                    set.add(result.getId());
+
+                    Transform3d tagPose = poseEstimator.estimate(result);
+                    tags.add(
+                            new DetectionResult.Tag(
+                                    result.getId(),
+                                    tagPose,
+                                    result.getDecisionMargin(),
+                                    result.getCenterX(),
+                                    result.getCenterY()));
+
+                    // draw square around detected AprilTag
+                    Imgproc.line(mat, pt0, pt1, red, 5);
+                    Imgproc.line(mat, pt1, pt2, red, 5);
+                    Imgproc.line(mat, pt2, pt3, red, 5);
+                    Imgproc.line(mat, pt3, pt0, red, 5);
+
+                    Imgproc.circle(mat, center, 4, green);
+                    // display id (number) of the tag
+                    Imgproc.putText(
+                            mat,
+                            String.valueOf(result.getId()),
+                            pt2,
+                            Imgproc.FONT_HERSHEY_COMPLEX,
+                            2,
+                            green,
+                            7);
+                }
+
+                for (var id : set) {
+                    if (printStatements) {
+                        System.out.println("Tag: " + String.valueOf(id));
+                    }
+                }
+
+                // detection takes long enough that the frame may have gone stale in the meantime
+                double publishTimestamp = Timer.getFPGATimestamp();
+                if (publishTimestamp - captureTimestamp > maxFrameAge) {
+                    staleFrameCount++;
+                } else {
+                    DetectionResult frameResult =
+                            new DetectionResult(
+                                    frameNumber,
+                                    captureTimestamp,
+                                    publishTimestamp,
+                                    tags,
+                                    solved,
+                                    solvedTagCount);
+                    // the getters keep the last frame a tag was seen in
+                    if (frameResult.hasTags()) {
+                        lastResult = frameResult;
+                    }
+                    if (solved != null) {
+                        lastRobotPoseResult = frameResult;
+                    }
+                    if (!subscriptions.isEmpty()) {
+                        publish(frameResult);
+                    }
+                }
+                frameNumber++;
+
+                outputStream.putFrame(mat);
+                busyNanos += System.nanoTime() - busyStartNanos;
+            }
+        } finally {
+            // if you do not close the detector, it will cause a memory leak
+            if (aprilTagDetector != null) {
+                aprilTagDetector.close();
+            }
+            if (poseSolver != null) {
+                poseSolver.close();
+            }
+            mat.release();
+            grayMat.release();
+            if (sink != null) {
+                // getVideo() registered the sink with CameraServer as well
+                CameraServer.removeServer(sink.getName());
+                sink.close();
+            }
+            if (outputStream != null) {
+                release(outputStream);
+            }
+            if (camera != null) {
+                release(camera);
+            }
+            detectionsPerSecond = 0;
+            visionLoad = 0;
+        }
+    }
+
+    /** Removes a source, and the server CameraServer started for it, and closes both. */
+    private static void release(VideoSource source) {
+        String name = source.getName();
+        VideoSink server = CameraServer.getServer("serve_" + name);
+        if (server != null) {
+            CameraServer.removeServer(server.getName());
+            server.close();
+        }
+        CameraServer.removeCamera(name);
+        source.close();
     }
 
     /** @return - the ID of the last-detected AprilTag */
     public int getLastTagID() {
-        return tagID;
+        DetectionResult result = lastResult;
+        if (result == null) {
+            return 0;
+        }
+        var tags = result.getTags();
+        return tags.get(tags.size() - 1).getId();
     }
 
     /** @return - the number of detections per second */
@@ -231,13 +733,108 @@ public class AprilTagFinder {
         return detectionsPerSecond;
     }
 
+    /**
+     * Returns the share of the last second the vision thread spent processing frames, rather than
+     * waiting for them, i.e to feed a {@link LoopJitterMonitor}
+     *
+     * @return - the vision load, from 0 (idle) to 1 (busy all the time)
+     */
+    public double getVisionLoad() {
+        return visionLoad;
+    }
+
     /**
      * Returns the pose of the detected AprilTag
      *
      * @return - the pose of the detected AprilTag
      */
     public Transform3d getPose() {
-        return pose;
+        DetectionResult result = lastResult;
+        if (result == null) {
+            return null;
+        }
+        var tags = result.getTags();
+        return tags.get(tags.size() - 1).getCameraToTag();
+    }
+
+    /**
+     * Returns everything found in the last published frame with a tag in it. getLastTagID(),
+     * getPose() and the timestamp getters all come from this frame, but read separately they may
+     * each see a different frame, read this once instead when they need to match.
+     *
+     * @return - the result of the frame, or null if no tag has been seen yet
+     */
+    public DetectionResult getLastResult() {
+        return lastResult;
+    }
+
+    /**
+     * Returns the capture time of the frame getPose() comes from, pass this along with getPose()
+     * to anything that compensates for latency. For the robot pose, use the capture time of
+     * {@link #getLastRobotPoseResult()} instead, it is a different frame whenever the last frame
+     * with a tag had no tag on the field layout.
+     *
+     * @return - the capture time in seconds, in the FPGA time base, or negative infinity if no
+     *     tag has been seen yet
+     */
+    public double getLastCaptureTimestamp() {
+        DetectionResult result = lastResult;
+        return result == null ? Double.NEGATIVE_INFINITY : result.getCaptureTimestamp();
+    }
+
+    /**
+     * Returns how long the last published frame with a tag in it took from capture to publish, the
+     * delay the vision pipeline itself adds
+     *
+     * @return - the pipeline delay in seconds, or 0 if no tag has been seen yet
+     */
+    public double getPipelineDelay() {
+        DetectionResult result = lastResult;
+        return result == null ? 0.0 : result.getPipelineDelay();
+    }
+
+    /**
+     * Returns how old the getters' values are right now, i.e to stop aiming at a pose that is too
+     * old to trust
+     *
+     * @return - the time since the last published frame with a tag in it was captured, in
+     *     seconds, or positive infinity if no tag has been seen yet
+     */
+    public double getFrameAge() {
+        DetectionResult result = lastResult;
+        return result == null ? Double.POSITIVE_INFINITY : result.getAge();
+    }
+
+    /** @return - how many frames were skipped for being older than the max frame age */
+    public long getStaleFrameCount() {
+        return staleFrameCount;
+    }
+
+    /**
+     * Returns the robot's pose on the field, solved from every AprilTag in the last frame that had
+     * a tag on the field layout. Only available when the AprilTagFinder was given a field layout.
+     *
+     * @return - the pose of the robot on the field, or null if it hasn't been solved yet
+     */
+    public Pose3d getRobotPose() {
+        DetectionResult result = lastRobotPoseResult;
+        return result == null ? null : result.getRobotPose();
+    }
+
+    /** @return - how many tags on the field layout getRobotPose() was solved from */
+    public int getRobotPoseTagCount() {
+        DetectionResult result = lastRobotPoseResult;
+        return result == null ? 0 : result.getRobotPoseTagCount();
+    }
+
+    /**
+     * Returns the last frame a robot pose was solved in, its robot pose, tag count and capture
+     * time always belong together, i.e to hand all three to a {@link PoseFusionEngine}
+     *
+     * @return - the result of the frame, or null if no robot pose has been solved yet
+     */
+    public DetectionResult getLastRobotPoseResult() {
+        return lastRobotPoseResult;
     }
 
     /**
@@ -248,17 +845,6 @@ public class AprilTagFinder {
      * @return - the distance between the two poses as double
      */
     public double getDistance(Transform3d pose1, Transform3d pose2) {
-        double x1 = pose1.getTranslation().getX();
-        double y1 = pose1.getTranslation().getY();
-        double z1 = pose1.getTranslation().getZ();
-
-        double x2 = pose2.getTranslation().getX();
-        double y2 = pose2.getTranslation().getY();
-        double z2 = pose2.getTranslation().getZ();
-
-        double distance =
-                Math.sqrt(Math.pow(x2 - x1, 2) + Math.pow(y2 - y1, 2) + Math.pow(z2 - z1, 2));
-
-        return distance;
+        return pose1.getTranslation().getDistance(pose2.getTranslation());
     }
 }
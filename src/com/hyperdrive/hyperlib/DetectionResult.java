@@ -0,0 +1,157 @@
+/* Copyright (c) 2024 HyperDrive Robotics. All rights reserved. */
+/* This work is licensed under the terms of the MIT license */
+/* found in the root directory of this project. */
+
+package com.hyperdrive.hyperlib;
+
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Transform3d;
+import edu.wpi.first.wpilibj.Timer;
+
+import java.util.List;
+
+/**
+ * Everything the {@link AprilTagFinder} found in a single camera frame.
+ *
+ * <p>A DetectionResult is immutable, every subscriber of a frame receives the very same instance,
+ * so it is safe to keep a reference to it, or hand it off to another thread.
+ */
+public class DetectionResult {
+
+    /** A single AprilTag detected in a frame */
+    public static class Tag {
+        private final int id;
+        private final Transform3d cameraToTag;
+        private final double decisionMargin;
+        private final double centerX;
+        private final double centerY;
+
+        /**
+         * @param id - the ID of the tag
+         * @param cameraToTag - the pose of the tag relative to the camera
+         * @param decisionMargin - the detector's decision margin, higher is a more certain
+         *     detection
+         * @param centerX - the x of the tag's center in the image, in pixels
+         * @param centerY - the y of the tag's center in the image, in pixels
+         */
+        public Tag(
+                int id,
+                Transform3d cameraToTag,
+                double decisionMargin,
+                double centerX,
+                double centerY) {
+            this.id = id;
+            this.cameraToTag = cameraToTag;
+            this.decisionMargin = decisionMargin;
+            this.centerX = centerX;
+            this.centerY = centerY;
+        }
+
+        /** @return - the ID of the tag */
+        public int getId() {
+            return id;
+        }
+
+        /** @return - the pose of the tag relative to the camera */
+        public Transform3d getCameraToTag() {
+            return cameraToTag;
+        }
+
+        /** @return - the detector's decision margin, higher is a more certain detection */
+        public double getDecisionMargin() {
+            return decisionMargin;
+        }
+
+        /** @return - the x of the tag's center in the image, in pixels */
+        public double getCenterX() {
+            return centerX;
+        }
+
+        /** @return - the y of the tag's center in the image, in pixels */
+        public double getCenterY() {
+            return centerY;
+        }
+    }
+
+    private final long frameNumber;
+    private final double captureTimestamp;
+    private final double publishTimestamp;
+    private final List<Tag> tags;
+    private final Pose3d robotPose;
+    private final int robotPoseTagCount;
+
+    /**
+     * @param frameNumber - the number of the frame, counting up from 0 since the finder started
+     * @param captureTimestamp - the time the frame was captured, in seconds in the FPGA time base
+     * @param publishTimestamp - the time the result was published, in seconds in the FPGA time
+     *     base
+     * @param tags - every tag detected in the frame
+     * @param robotPose - the robot's pose on the field solved from the frame, or null
+     * @param robotPoseTagCount - how many tags on the field layout the robot pose was solved from
+     */
+    public DetectionResult(
+            long frameNumber,
+            double captureTimestamp,
+            double publishTimestamp,
+            List<Tag> tags,
+            Pose3d robotPose,
+            int robotPoseTagCount) {
+        this.frameNumber = frameNumber;
+        this.captureTimestamp = captureTimestamp;
+        this.publishTimestamp = publishTimestamp;
+        this.tags = List.copyOf(tags);
+        this.robotPose = robotPose;
+        this.robotPoseTagCount = robotPoseTagCount;
+    }
+
+    /** @return - the number of the frame, counting up from 0 since the finder started */
+    public long getFrameNumber() {
+        return frameNumber;
+    }
+
+    /**
+     * @return - the time the frame was captured, in seconds in the FPGA time base (the same as
+     *     Timer.getFPGATimestamp())
+     */
+    public double getCaptureTimestamp() {
+        return captureTimestamp;
+    }
+
+    /** @return - the time the result was published, in seconds in the FPGA time base */
+    public double getPublishTimestamp() {
+        return publishTimestamp;
+    }
+
+    /** @return - how long the vision pipeline took from capture to publish, in seconds */
+    public double getPipelineDelay() {
+        return publishTimestamp - captureTimestamp;
+    }
+
+    /** @return - how long ago the frame was captured, in seconds */
+    public double getAge() {
+        return Timer.getFPGATimestamp() - captureTimestamp;
+    }
+
+    /** @return - every tag detected in the frame, this list can not be modified */
+    public List<Tag> getTags() {
+        return tags;
+    }
+
+    /** @return - true if at least one tag was detected in the frame */
+    public boolean hasTags() {
+        return !tags.isEmpty();
+    }
+
+    /**
+     * @return - the robot's pose on the field solved from this frame, or null if the finder has
+     *     no field layout or no tag on the layout was visible
+     */
+    public Pose3d getRobotPose() {
+        return robotPose;
+    }
+
+    /** @return - how many tags on the field layout the robot pose was solved from */
+    public int getRobotPoseTagCount() {
+        return robotPoseTagCount;
+    }
+}
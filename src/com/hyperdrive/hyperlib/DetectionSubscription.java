@@ -0,0 +1,215 @@
+/* Copyright (c) 2024 HyperDrive Robotics. All rights reserved. */
+/* This work is licensed under the terms of the MIT license */
+/* found in the root directory of this project. */
+
+package com.hyperdrive.hyperlib;
+
+import edu.wpi.first.wpilibj.DriverStation;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A subscription to the per-frame {@link DetectionResult}s of an {@link AprilTagFinder}, created
+ * with {@link AprilTagFinder#subscribe(Consumer, Backpressure)}.
+ *
+ * <p>The vision thread never runs the callback itself, it only hands the result over, which never
+ * blocks. The callback runs on the subscription's executor, so a slow consumer can only ever fall
+ * behind, and what happens to the frames it falls behind on is decided by its {@link
+ * Backpressure}. By default every subscription gets its own daemon thread, teams on Java 21+ can
+ * pass {@code Executors.newVirtualThreadPerTaskExecutor()} instead. A custom executor is called
+ * from the vision thread, so it must hand the work to another thread without blocking, an
+ * executor that runs tasks inline or blocks on a full queue stalls detection. Callbacks of a
+ * single subscription never run concurrently, and always run in frame order.
+ */
+public class DetectionSubscription implements AutoCloseable {
+
+    /** What to do with new frames while the callback is still busy with an older one */
+    public enum Backpressure {
+        /** keep only the newest waiting frame, older waiting frames are dropped */
+        LATEST_ONLY,
+        /** keep up to queueCapacity waiting frames, the oldest is dropped when the queue is full */
+        BOUNDED_QUEUE,
+        /** drop every frame that arrives while the callback is busy */
+        DROP_WHILE_BUSY
+    }
+
+    private final Consumer<DetectionResult> callback;
+    private final Backpressure backpressure;
+    private final int queueCapacity;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+
+    // guarded by itself, along with draining
+    private final ArrayDeque<DetectionResult> pending = new ArrayDeque<>();
+    private boolean draining;
+    private volatile boolean closed;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Creates a new DetectionSubscription, use {@link AprilTagFinder#subscribe(Consumer,
+     * Backpressure)} instead of calling this directly.
+     *
+     * @param callback - called with every frame's result that isn't dropped
+     * @param backpressure - what to do with frames while the callback is busy
+     * @param queueCapacity - how many frames may wait with BOUNDED_QUEUE, ignored otherwise
+     * @param executor - the executor the callback runs on, it must not block or run tasks inline,
+     *     or null for a dedicated daemon thread
+     * @param threadConfig - the priority and affinity of the dedicated thread, if there is one
+     */
+    DetectionSubscription(
+            Consumer<DetectionResult> callback,
+            Backpressure backpressure,
+            int queueCapacity,
+            Executor executor,
+            WorkerThreadConfig threadConfig) {
+        if (backpressure == Backpressure.BOUNDED_QUEUE && queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1");
+        }
+        this.callback = callback;
+        this.backpressure = backpressure;
+        this.queueCapacity = queueCapacity;
+        if (executor == null) {
+            ownedExecutor =
+                    Executors.newSingleThreadExecutor(
+                            runnable -> {
+                                Runnable configured =
+                                        () -> {
+                                            threadConfig.applyToCurrentThread();
+                                            runnable.run();
+                                        };
+                                Thread thread =
+                                        new Thread(configured, "AprilTagFinder subscriber");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+            this.executor = ownedExecutor;
+        } else {
+            ownedExecutor = null;
+            this.executor = executor;
+        }
+    }
+
+    /** Hands a result over to the callback, called from the vision thread and never blocks. */
+    void offer(DetectionResult result) {
+        synchronized (pending) {
+            if (closed) {
+                return;
+            }
+            switch (backpressure) {
+                case LATEST_ONLY:
+                    if (!pending.isEmpty()) {
+                        dropped.addAndGet(pending.size());
+                        pending.clear();
+                    }
+                    break;
+                case BOUNDED_QUEUE:
+                    if (pending.size() >= queueCapacity) {
+                        pending.poll();
+                        dropped.incrementAndGet();
+                    }
+                    break;
+                case DROP_WHILE_BUSY:
+                    if (draining) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                    break;
+            }
+            pending.add(result);
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        try {
+            // called from the vision thread, see the class Javadoc on what the executor may do
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            synchronized (pending) {
+                dropped.addAndGet(pending.size());
+                pending.clear();
+                draining = false;
+            }
+        }
+    }
+
+    private void drain() {
+        boolean drained = false;
+        try {
+            while (true) {
+                DetectionResult next;
+                synchronized (pending) {
+                    next = closed ? null : pending.poll();
+                    if (next == null) {
+                        pending.clear();
+                        draining = false;
+                        drained = true;
+                        return;
+                    }
+                }
+                try {
+                    callback.accept(next);
+                    delivered.incrementAndGet();
+                } catch (RuntimeException e) {
+                    // a broken consumer shouldn't take the other subscribers down with it
+                    DriverStation.reportError(
+                            "AprilTagFinder subscriber threw: " + e, e.getStackTrace());
+                }
+            }
+        } finally {
+            // an Error escaped the callback, let the next offer() schedule a new drain instead of
+            // waiting forever on this one
+            if (!drained) {
+                synchronized (pending) {
+                    draining = false;
+                }
+            }
+        }
+    }
+
+    /** @return - the backpressure policy of this subscription */
+    public Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    /** @return - how many frames the callback has been called with */
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    /** @return - how many frames were dropped because the callback was busy */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /** @return - true once the subscription has been closed */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops delivering frames, frames that are still waiting are dropped. A callback that is
+     * running when close() is called is allowed to finish.
+     */
+    @Override
+    public void close() {
+        synchronized (pending) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.clear();
+        }
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+}
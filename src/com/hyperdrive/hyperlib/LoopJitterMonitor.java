@@ -0,0 +1,215 @@
+/* Copyright (c) 2024 HyperDrive Robotics. All rights reserved. */
+/* This work is licensed under the terms of the MIT license */
+/* found in the root directory of this project. */
+
+package com.hyperdrive.hyperlib;
+
+import edu.wpi.first.wpilibj.RobotController;
+
+import java.util.Arrays;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Records a histogram of the robot loop's period, alongside the vision load at the time of every
+ * sample.
+ *
+ * <p>Call {@link #sample()} once at the start of robotPeriodic(). Every sample measures the time
+ * since the previous one, and adds it to the histogram bucket it falls in, together with the
+ * current vision load (i.e {@link AprilTagFinder#getVisionLoad()}). If the slow buckets have a
+ * much higher average vision load than the bucket of the nominal period, vision is stealing time
+ * from control, and the vision thread should get a lower priority or its own core, see {@link
+ * WorkerThreadConfig}.
+ *
+ * <p>The histogram is allocated once, sampling never allocates.
+ */
+public class LoopJitterMonitor {
+
+    private final double nominalPeriod;
+    private final double bucketWidth;
+    private final long[] counts;
+    private final double[] visionLoadSums;
+    private DoubleSupplier visionLoad = () -> 0.0;
+
+    private long lastSampleMicros = -1;
+    private long sampleCount;
+    private long overrunCount;
+    private double sum;
+    private double sumOfSquares;
+    private double minPeriod = Double.POSITIVE_INFINITY;
+    private double maxPeriod;
+
+    /**
+     * Creates a new LoopJitterMonitor with 1 ms buckets up to 4 times the nominal period
+     *
+     * @param nominalPeriodSeconds - the period the robot loop should run at, i.e 0.02
+     */
+    public LoopJitterMonitor(double nominalPeriodSeconds) {
+        this(nominalPeriodSeconds, 0.001, (int) Math.ceil(nominalPeriodSeconds * 4 / 0.001));
+    }
+
+    /**
+     * Creates a new LoopJitterMonitor
+     *
+     * @param nominalPeriodSeconds - the period the robot loop should run at, i.e 0.02
+     * @param bucketWidthSeconds - the width of a single histogram bucket, i.e 0.001
+     * @param bucketCount - the number of buckets, the last bucket also counts every longer period
+     */
+    public LoopJitterMonitor(
+            double nominalPeriodSeconds, double bucketWidthSeconds, int bucketCount) {
+        if (nominalPeriodSeconds <= 0 || bucketWidthSeconds <= 0 || bucketCount < 1) {
+            throw new IllegalArgumentException("periods and the bucket count must be positive");
+        }
+        nominalPeriod = nominalPeriodSeconds;
+        bucketWidth = bucketWidthSeconds;
+        counts = new long[bucketCount];
+        visionLoadSums = new double[bucketCount];
+    }
+
+    /**
+     * Sets where the vision load is read from on every sample
+     *
+     * @param visionLoad - the vision load from 0 to 1, i.e finder::getVisionLoad
+     */
+    public void setVisionLoadSupplier(DoubleSupplier visionLoad) {
+        this.visionLoad = visionLoad;
+    }
+
+    /** Records the time since the last sample, call this once at the start of every loop. */
+    public void sample() {
+        long now = RobotController.getFPGATime();
+        if (lastSampleMicros >= 0) {
+            record((now - lastSampleMicros) / 1e6, visionLoad.getAsDouble());
+        }
+        lastSampleMicros = now;
+    }
+
+    /**
+     * Records a single loop period, sample() calls this with the measured period
+     *
+     * @param periodSeconds - the time between two loops
+     * @param load - the vision load during the period, from 0 to 1
+     */
+    public void record(double periodSeconds, double load) {
+        int bucket = (int) (periodSeconds / bucketWidth);
+        bucket = Math.max(0, Math.min(bucket, counts.length - 1));
+        counts[bucket]++;
+        visionLoadSums[bucket] += load;
+
+        sampleCount++;
+        sum += periodSeconds;
+        sumOfSquares += periodSeconds * periodSeconds;
+        minPeriod = Math.min(minPeriod, periodSeconds);
+        maxPeriod = Math.max(maxPeriod, periodSeconds);
+        // a loop that ran late shows up as a period longer than the nominal one
+        if (periodSeconds > nominalPeriod + bucketWidth) {
+            overrunCount++;
+        }
+    }
+
+    /** Clears every recorded sample, i.e when switching from disabled to enabled. */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        Arrays.fill(visionLoadSums, 0);
+        lastSampleMicros = -1;
+        sampleCount = 0;
+        overrunCount = 0;
+        sum = 0;
+        sumOfSquares = 0;
+        minPeriod = Double.POSITIVE_INFINITY;
+        maxPeriod = 0;
+    }
+
+    /** @return - the number of histogram buckets */
+    public int getBucketCount() {
+        return counts.length;
+    }
+
+    /** @return - the width of a histogram bucket, in seconds */
+    public double getBucketWidth() {
+        return bucketWidth;
+    }
+
+    /**
+     * @param bucket - the index of the bucket, covering periods from bucket * bucketWidth
+     * @return - the number of periods that fell in the bucket
+     */
+    public long getCount(int bucket) {
+        return counts[bucket];
+    }
+
+    /**
+     * @param bucket - the index of the bucket, covering periods from bucket * bucketWidth
+     * @return - the average vision load of the periods that fell in the bucket, 0 if there were
+     *     none
+     */
+    public double getAverageVisionLoad(int bucket) {
+        return counts[bucket] == 0 ? 0.0 : visionLoadSums[bucket] / counts[bucket];
+    }
+
+    /** @return - the number of recorded periods */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /** @return - the number of periods longer than the nominal period by more than a bucket */
+    public long getOverrunCount() {
+        return overrunCount;
+    }
+
+    /** @return - the average period, in seconds */
+    public double getMeanPeriod() {
+        return sampleCount == 0 ? 0.0 : sum / sampleCount;
+    }
+
+    /** @return - the standard deviation of the period (the jitter), in seconds */
+    public double getJitter() {
+        if (sampleCount == 0) {
+            return 0.0;
+        }
+        double mean = sum / sampleCount;
+        return Math.sqrt(Math.max(0.0, sumOfSquares / sampleCount - mean * mean));
+    }
+
+    /** @return - the shortest recorded period, in seconds */
+    public double getMinPeriod() {
+        return sampleCount == 0 ? 0.0 : minPeriod;
+    }
+
+    /** @return - the longest recorded period, in seconds */
+    public double getMaxPeriod() {
+        return maxPeriod;
+    }
+
+    /**
+     * Returns the histogram as text, one line per non-empty bucket, i.e to print it in
+     * disabledInit()
+     *
+     * @return - the histogram, with the count and average vision load of every bucket
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(
+                String.format(
+                        "loop period: mean %.2f ms, jitter %.2f ms, min %.2f ms, max %.2f ms,"
+                                + " %d of %d overran%n",
+                        getMeanPeriod() * 1000,
+                        getJitter() * 1000,
+                        getMinPeriod() * 1000,
+                        getMaxPeriod() * 1000,
+                        overrunCount,
+                        sampleCount));
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                continue;
+            }
+            report.append(
+                    String.format(
+                            "%6.1f ms%s: %8d  vision load %3.0f%%%n",
+                            i * bucketWidth * 1000,
+                            i == counts.length - 1 ? "+" : " ",
+                            counts[i],
+                            getAverageVisionLoad(i) * 100));
+        }
+        return report.toString();
+    }
+}
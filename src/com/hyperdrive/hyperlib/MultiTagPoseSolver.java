@@ -0,0 +1,274 @@
+/* Copyright (c) 2024 HyperDrive Robotics. All rights reserved. */
+/* This work is licensed under the terms of the MIT license */
+/* found in the root directory of this project. */
+
+package com.hyperdrive.hyperlib;
+
+import edu.wpi.first.apriltag.AprilTag;
+import edu.wpi.first.apriltag.AprilTagDetection;
+import edu.wpi.first.apriltag.AprilTagFieldLayout;
+import edu.wpi.first.apriltag.AprilTagPoseEstimator;
+import edu.wpi.first.math.Matrix;
+import edu.wpi.first.math.Nat;
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.geometry.Transform3d;
+import edu.wpi.first.math.geometry.Translation3d;
+import edu.wpi.first.math.numbers.N3;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+
+/**
+ * Solves for a single robot pose on the field from every AprilTag visible in a frame.
+ *
+ * <p>The corners of all visible tags, whose field positions are known from an {@link
+ * AprilTagFieldLayout}, are fed into one least-squares PnP solve. This is both cheaper and more
+ * accurate than estimating a pose per tag and combining them afterwards, since every corner
+ * constrains the same camera pose, and a single tag's pose ambiguity goes away once a second tag
+ * is in view.
+ *
+ * <p>The solve is warm-started from the previous frame's solution, which usually converges in a
+ * couple of iterations since the robot moves very little between frames. When no known tag is
+ * visible, or the warm-started solution doesn't fit the frame, the solver falls back to a cold
+ * solve.
+ *
+ * <p>The field position of every tag corner is computed once when the solver is created, so the
+ * layout's origin must be set (i.e for the red alliance) before creating the solver.
+ */
+public class MultiTagPoseSolver implements AutoCloseable {
+
+    private final Transform3d cameraToRobot;
+    // field-frame corners per tag ID as x, y, z triples in detector corner order, null if the ID
+    // isn't in the layout
+    private final float[][] fieldCorners;
+    private final double maxReprojectionErrorPixels;
+
+    private final Mat cameraMatrix = new Mat(3, 3, CvType.CV_64F);
+    private final MatOfDouble distCoeffs = new MatOfDouble();
+    private final MatOfPoint3f objectPoints = new MatOfPoint3f();
+    private final MatOfPoint2f imagePoints = new MatOfPoint2f();
+    private final MatOfPoint2f projectedPoints = new MatOfPoint2f();
+    private final Mat rvec = new Mat(3, 1, CvType.CV_64F);
+    private final Mat tvec = new Mat(3, 1, CvType.CV_64F);
+    private final Mat rotationMatrix = new Mat(3, 3, CvType.CV_64F);
+    private final double[] r = new double[9];
+    private final double[] t = new double[3];
+
+    private boolean hasPreviousSolution;
+    private int lastTagCount;
+    private double lastReprojectionError;
+
+    /**
+     * Creates a new MultiTagPoseSolver
+     *
+     * @param fieldLayout - the layout of the AprilTags on the field
+     * @param cameraToRobot - the transform from the camera to the center of the robot
+     * @param cameraConfig - the same config given to the AprilTagPoseEstimator, its tag size and
+     *     camera intrinsics (fx, fy, cx, cy) are used
+     * @param maxReprojectionErrorPixels - the largest RMS reprojection error (in pixels) a
+     *     warm-started solution may have before the solver falls back to a cold solve, 5 is a sane
+     *     default
+     */
+    public MultiTagPoseSolver(
+            AprilTagFieldLayout fieldLayout,
+            Transform3d cameraToRobot,
+            AprilTagPoseEstimator.Config cameraConfig,
+            double maxReprojectionErrorPixels) {
+        this.cameraToRobot = cameraToRobot;
+        this.maxReprojectionErrorPixels = maxReprojectionErrorPixels;
+
+        cameraMatrix.put(
+                0,
+                0,
+                cameraConfig.fx,
+                0,
+                cameraConfig.cx,
+                0,
+                cameraConfig.fy,
+                cameraConfig.cy,
+                0,
+                0,
+                1);
+
+        int maxID = 0;
+        for (AprilTag tag : fieldLayout.getTags()) {
+            maxID = Math.max(maxID, tag.ID);
+        }
+        fieldCorners = new float[maxID + 1][];
+
+        // corners in the tag's frame (x out of the tag, y left, z up) in the order the detector
+        // reports them: bottom left, bottom right, top right, top left, as seen by the camera
+        double half = cameraConfig.tagSize / 2;
+        Translation3d[] tagCorners = {
+            new Translation3d(0, -half, -half),
+            new Translation3d(0, half, -half),
+            new Translation3d(0, half, half),
+            new Translation3d(0, -half, half)
+        };
+        for (AprilTag tag : fieldLayout.getTags()) {
+            // getTagPose() takes the layout's origin into account, tag.pose does not
+            Pose3d tagPose = fieldLayout.getTagPose(tag.ID).orElse(tag.pose);
+            float[] corners = new float[12];
+            for (int i = 0; i < 4; i++) {
+                Translation3d corner =
+                        tagCorners[i]
+                                .rotateBy(tagPose.getRotation())
+                                .plus(tagPose.getTranslation());
+                corners[i * 3] = (float) corner.getX();
+                corners[i * 3 + 1] = (float) corner.getY();
+                corners[i * 3 + 2] = (float) corner.getZ();
+            }
+            fieldCorners[tag.ID] = corners;
+        }
+    }
+
+    /**
+     * Solves for the robot's pose on the field
+     *
+     * @param detections - every AprilTag detected in the frame
+     * @return - the pose of the robot on the field, or null if none of the detected tags are on the
+     *     field layout
+     */
+    public Pose3d solve(AprilTagDetection[] detections) {
+        int tagCount = 0;
+        for (var detection : detections) {
+            if (isOnField(detection.getId())) {
+                tagCount++;
+            }
+        }
+        lastTagCount = tagCount;
+        if (tagCount == 0) {
+            // the robot may have moved anywhere by the time a tag shows up again
+            hasPreviousSolution = false;
+            return null;
+        }
+
+        float[] object = new float[tagCount * 12];
+        float[] image = new float[tagCount * 8];
+        int n = 0;
+        for (var detection : detections) {
+            if (!isOnField(detection.getId())) {
+                continue;
+            }
+            System.arraycopy(fieldCorners[detection.getId()], 0, object, n * 12, 12);
+            for (int i = 0; i < 4; i++) {
+                image[n * 8 + i * 2] = (float) detection.getCornerX(i);
+                image[n * 8 + i * 2 + 1] = (float) detection.getCornerY(i);
+            }
+            n++;
+        }
+        objectPoints.alloc(tagCount * 4);
+        objectPoints.put(0, 0, object);
+        imagePoints.alloc(tagCount * 4);
+        imagePoints.put(0, 0, image);
+
+        boolean solved = false;
+        if (hasPreviousSolution) {
+            solved =
+                    Calib3d.solvePnP(
+                            objectPoints,
+                            imagePoints,
+                            cameraMatrix,
+                            distCoeffs,
+                            rvec,
+                            tvec,
+                            true,
+                            Calib3d.SOLVEPNP_ITERATIVE);
+            solved = solved && reprojectionError(image) <= maxReprojectionErrorPixels;
+        }
+        if (!solved) {
+            solved =
+                    Calib3d.solvePnP(
+                            objectPoints,
+                            imagePoints,
+                            cameraMatrix,
+                            distCoeffs,
+                            rvec,
+                            tvec,
+                            false,
+                            Calib3d.SOLVEPNP_SQPNP);
+            if (solved) {
+                reprojectionError(image);
+            }
+        }
+        hasPreviousSolution = solved;
+        if (!solved) {
+            return null;
+        }
+        return toFieldPose().transformBy(cameraToRobot);
+    }
+
+    /** Drops the previous solution, so the next solve starts cold. */
+    public void reset() {
+        hasPreviousSolution = false;
+    }
+
+    /** @return - how many tags on the field layout were used by the last solve */
+    public int getLastTagCount() {
+        return lastTagCount;
+    }
+
+    /** @return - the RMS reprojection error of the last solution, in pixels */
+    public double getLastReprojectionError() {
+        return lastReprojectionError;
+    }
+
+    @Override
+    public void close() {
+        cameraMatrix.release();
+        distCoeffs.release();
+        objectPoints.release();
+        imagePoints.release();
+        projectedPoints.release();
+        rvec.release();
+        tvec.release();
+        rotationMatrix.release();
+    }
+
+    private boolean isOnField(int id) {
+        return id >= 0 && id < fieldCorners.length && fieldCorners[id] != null;
+    }
+
+    private double reprojectionError(float[] image) {
+        Calib3d.projectPoints(objectPoints, rvec, tvec, cameraMatrix, distCoeffs, projectedPoints);
+        float[] projected = new float[image.length];
+        projectedPoints.get(0, 0, projected);
+        double sum = 0;
+        for (int i = 0; i < image.length; i++) {
+            double error = projected[i] - image[i];
+            sum += error * error;
+        }
+        lastReprojectionError = Math.sqrt(sum / (image.length / 2));
+        return lastReprojectionError;
+    }
+
+    /**
+     * solvePnP gives the field-to-camera transform in OpenCV's camera frame (x right, y down, z
+     * forward), this turns it into the camera's pose in WPILib's field frame, where the camera
+     * looks down its x axis.
+     */
+    private Pose3d toFieldPose() {
+        Calib3d.Rodrigues(rvec, rotationMatrix);
+        rotationMatrix.get(0, 0, r);
+        tvec.get(0, 0, t);
+
+        // the camera's rotation is R^T, with the OpenCV axes swapped for WPILib's
+        Matrix<N3, N3> rotation = new Matrix<>(Nat.N3(), Nat.N3());
+        for (int i = 0; i < 3; i++) {
+            rotation.set(i, 0, r[6 + i]);
+            rotation.set(i, 1, -r[i]);
+            rotation.set(i, 2, -r[3 + i]);
+        }
+        // the camera's position is -R^T * t
+        double x = -(r[0] * t[0] + r[3] * t[1] + r[6] * t[2]);
+        double y = -(r[1] * t[0] + r[4] * t[1] + r[7] * t[2]);
+        double z = -(r[2] * t[0] + r[5] * t[1] + r[8] * t[2]);
+
+        return new Pose3d(new Translation3d(x, y, z), new Rotation3d(rotation));
+    }
+}
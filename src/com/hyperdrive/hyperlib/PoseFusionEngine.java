@@ -0,0 +1,438 @@
+/* Copyright (c) 2024 HyperDrive Robotics. All rights reserved. */
+/* This work is licensed under the terms of the MIT license */
+/* found in the root directory of this project. */
+
+package com.hyperdrive.hyperlib;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+
+/**
+ * Fuses high-rate odometry with latent vision measurements into a single pose estimate.
+ *
+ * <p>Vision measurements arrive late: by the time a frame has been captured, detected and solved,
+ * the robot has already driven on. Instead of blending an old vision pose with the current
+ * odometry, the engine keeps a fixed-size history of odometry samples and the estimates made at
+ * each of them. A vision measurement is fused into the estimate at the moment its frame was
+ * captured, and the estimate is then replayed forward to the present using the odometry recorded
+ * since. A late measurement therefore corrects the present exactly as much as it would have if it
+ * had arrived instantly.
+ *
+ * <p>Fusion is a per-axis Kalman update: the estimate's variance grows with every meter (and
+ * radian) odometry drives, and shrinks with every vision measurement, weighed by the standard
+ * deviations passed with it. Measurements are remembered in the history, so a measurement that
+ * arrives out of order is fused in the right place, without undoing newer ones. Measurements that
+ * land on the same odometry sample, i.e from two cameras, or vision running faster than odometry,
+ * are merged into one, each weighed by its standard deviations.
+ *
+ * <p>All history is allocated up front: adding samples never allocates, and the current estimate
+ * can be read in constant time. Timestamps are in seconds, in the same time base for odometry and
+ * vision, i.e Timer.getFPGATimestamp() and {@link DetectionResult#getCaptureTimestamp()}.
+ */
+public class PoseFusionEngine {
+
+    // the variance of an estimate nothing is known about yet, vision quickly takes over from it
+    private static final double UNKNOWN_VARIANCE = 100.0;
+
+    private final double xyVariancePerMeter;
+    private final double headingVariancePerRadian;
+
+    // ring buffer, slot (head - size + 1) is the oldest sample, slot head is the newest
+    private final double[] time;
+    private final double[] odometryX;
+    private final double[] odometryY;
+    private final double[] odometryHeading;
+    // the estimate before and after fusing the vision measurement stored in the same slot
+    private final double[] priorX;
+    private final double[] priorY;
+    private final double[] priorHeading;
+    private final double[] priorXYVariance;
+    private final double[] priorHeadingVariance;
+    private final double[] estimateX;
+    private final double[] estimateY;
+    private final double[] estimateHeading;
+    private final double[] estimateXYVariance;
+    private final double[] estimateHeadingVariance;
+    // at most one vision measurement per slot, already moved to the slot's time, measurements
+    // landing on the same slot are merged
+    private final boolean[] hasVision;
+    private final double[] visionX;
+    private final double[] visionY;
+    private final double[] visionHeading;
+    private final double[] visionXYVariance;
+    private final double[] visionHeadingVariance;
+
+    private int head = -1;
+    private int size;
+
+    private boolean hasResetPose;
+    private double resetX;
+    private double resetY;
+    private double resetHeading;
+
+    /**
+     * Creates a new PoseFusionEngine
+     *
+     * @param historySize - how many odometry samples to keep, this limits how late a vision
+     *     measurement may arrive, i.e 100 samples at 50 Hz keep 2 seconds of history
+     * @param odometryStdDevPerMeter - how far (in meters) odometry drifts per meter driven, i.e
+     *     0.05
+     * @param odometryHeadingStdDevPerRadian - how far (in radians) the heading drifts per radian
+     *     turned, i.e 0.01 for a NavX
+     */
+    public PoseFusionEngine(
+            int historySize,
+            double odometryStdDevPerMeter,
+            double odometryHeadingStdDevPerRadian) {
+        if (historySize < 2) {
+            throw new IllegalArgumentException("historySize must be at least 2");
+        }
+        xyVariancePerMeter = odometryStdDevPerMeter * odometryStdDevPerMeter;
+        headingVariancePerRadian = odometryHeadingStdDevPerRadian * odometryHeadingStdDevPerRadian;
+
+        time = new double[historySize];
+        odometryX = new double[historySize];
+        odometryY = new double[historySize];
+        odometryHeading = new double[historySize];
+        priorX = new double[historySize];
+        priorY = new double[historySize];
+        priorHeading = new double[historySize];
+        priorXYVariance = new double[historySize];
+        priorHeadingVariance = new double[historySize];
+        estimateX = new double[historySize];
+        estimateY = new double[historySize];
+        estimateHeading = new double[historySize];
+        estimateXYVariance = new double[historySize];
+        estimateHeadingVariance = new double[historySize];
+        hasVision = new boolean[historySize];
+        visionX = new double[historySize];
+        visionY = new double[historySize];
+        visionHeading = new double[historySize];
+        visionXYVariance = new double[historySize];
+        visionHeadingVariance = new double[historySize];
+    }
+
+    /**
+     * Forgets all history and starts over from a known pose, i.e at the start of autonomous. The
+     * next odometry sample is taken to be at this pose.
+     *
+     * @param pose - the robot's pose on the field
+     */
+    public synchronized void resetPose(Pose2d pose) {
+        head = -1;
+        size = 0;
+        hasResetPose = true;
+        resetX = pose.getX();
+        resetY = pose.getY();
+        resetHeading = pose.getRotation().getRadians();
+    }
+
+    /**
+     * Adds an odometry sample, call this every loop (or faster)
+     *
+     * @param timestamp - the time the sample was taken, in seconds
+     * @param odometryPose - the pose odometry reports, in its own frame
+     */
+    public void addOdometry(double timestamp, Pose2d odometryPose) {
+        addOdometry(
+                timestamp,
+                odometryPose.getX(),
+                odometryPose.getY(),
+                odometryPose.getRotation().getRadians());
+    }
+
+    /**
+     * Adds an odometry sample, call this every loop (or faster). x and y should come from wheel
+     * odometry, i.e a DifferentialDriveOdometry or SwerveDriveOdometry pose. The heading of a NavX
+     * is navX.getRotation2d().getRadians(), not getYaw(), which is clockwise positive and in
+     * degrees.
+     *
+     * @param timestamp - the time the sample was taken, in seconds
+     * @param x - the x odometry reports, in meters
+     * @param y - the y odometry reports, in meters
+     * @param headingRadians - the heading odometry reports, counter-clockwise positive
+     */
+    public synchronized void addOdometry(
+            double timestamp, double x, double y, double headingRadians) {
+        if (size > 0 && timestamp <= time[head]) {
+            // odometry only moves forward, a sample from the past can't be placed anymore
+            return;
+        }
+        int previous = head;
+        head = (head + 1) % time.length;
+        size = Math.min(size + 1, time.length);
+
+        time[head] = timestamp;
+        odometryX[head] = x;
+        odometryY[head] = y;
+        odometryHeading[head] = headingRadians;
+        hasVision[head] = false;
+
+        if (previous < 0) {
+            // the very first sample, start from the reset pose, or from odometry
+            priorX[head] = hasResetPose ? resetX : x;
+            priorY[head] = hasResetPose ? resetY : y;
+            priorHeading[head] = hasResetPose ? resetHeading : headingRadians;
+            priorXYVariance[head] = hasResetPose ? 0 : UNKNOWN_VARIANCE;
+            priorHeadingVariance[head] = hasResetPose ? 0 : UNKNOWN_VARIANCE;
+            copyPriorToEstimate(head);
+        } else {
+            propagate(head);
+        }
+    }
+
+    /**
+     * Adds a vision measurement, it is fused at the time its frame was captured, and the estimate
+     * is replayed forward from there
+     *
+     * @param timestamp - the time the frame was captured, in seconds
+     * @param visionPose - the robot's pose on the field, as solved from the frame
+     * @param xyStdDev - how far (in meters) the measurement may be off, i.e 0.1 for multiple tags
+     * @param headingStdDev - how far (in radians) the measured heading may be off
+     * @return - true if the measurement was fused, false if it is older than the history
+     */
+    public synchronized boolean addVisionMeasurement(
+            double timestamp, Pose2d visionPose, double xyStdDev, double headingStdDev) {
+        if (size == 0 || timestamp < time[oldest()]) {
+            return false;
+        }
+        int slot = findSlot(timestamp);
+
+        // move the measurement back to the slot's time with the odometry driven in between
+        double x = visionPose.getX();
+        double y = visionPose.getY();
+        double heading = visionPose.getRotation().getRadians();
+        if (slot != head && timestamp > time[slot]) {
+            int next = (slot + 1) % time.length;
+            double t = (timestamp - time[slot]) / (time[next] - time[slot]);
+            double dx = t * (odometryX[next] - odometryX[slot]);
+            double dy = t * (odometryY[next] - odometryY[slot]);
+            double dHeading =
+                    t * MathUtil.angleModulus(odometryHeading[next] - odometryHeading[slot]);
+            // the motion in the robot's frame, turned into the measured pose's frame
+            double robotHeading = odometryHeading[slot] + dHeading;
+            double cos = Math.cos(heading - robotHeading);
+            double sin = Math.sin(heading - robotHeading);
+            x -= cos * dx - sin * dy;
+            y -= sin * dx + cos * dy;
+            heading -= dHeading;
+        }
+
+        double xyVariance = xyStdDev * xyStdDev;
+        double headingVariance = headingStdDev * headingStdDev;
+        if (hasVision[slot]) {
+            mergeVision(slot, x, y, heading, xyVariance, headingVariance);
+        } else {
+            hasVision[slot] = true;
+            visionX[slot] = x;
+            visionY[slot] = y;
+            visionHeading[slot] = heading;
+            visionXYVariance[slot] = xyVariance;
+            visionHeadingVariance[slot] = headingVariance;
+        }
+
+        // fusing starts from the slot's prior, so a merged measurement simply replaces the old one
+        fuse(slot);
+        int index = slot;
+        while (index != head) {
+            index = (index + 1) % time.length;
+            propagate(index);
+        }
+        return true;
+    }
+
+    /**
+     * Adds the robot pose the {@link AprilTagFinder} solved from a frame, at the frame's capture
+     * time
+     *
+     * @param result - the result of a frame, frames without a robot pose are ignored
+     * @param xyStdDev - how far (in meters) the measurement may be off, i.e 0.1 for multiple tags
+     * @param headingStdDev - how far (in radians) the measured heading may be off
+     * @return - true if the measurement was fused
+     */
+    public boolean addVisionMeasurement(
+            DetectionResult result, double xyStdDev, double headingStdDev) {
+        if (result.getRobotPose() == null) {
+            return false;
+        }
+        return addVisionMeasurement(
+                result.getCaptureTimestamp(),
+                result.getRobotPose().toPose2d(),
+                xyStdDev,
+                headingStdDev);
+    }
+
+    /** @return - the current pose estimate, or null before the first odometry sample */
+    public synchronized Pose2d getEstimate() {
+        if (size == 0) {
+            return null;
+        }
+        return new Pose2d(estimateX[head], estimateY[head], new Rotation2d(estimateHeading[head]));
+    }
+
+    /**
+     * Returns the estimate at a time in the history, interpolated between odometry samples
+     *
+     * @param timestamp - the time, in seconds
+     * @return - the pose estimate at the time, or null if the time is older than the history
+     */
+    public synchronized Pose2d getEstimateAt(double timestamp) {
+        if (size == 0 || timestamp < time[oldest()]) {
+            return null;
+        }
+        int slot = findSlot(timestamp);
+        if (slot == head || timestamp == time[slot]) {
+            return new Pose2d(
+                    estimateX[slot], estimateY[slot], new Rotation2d(estimateHeading[slot]));
+        }
+        int next = (slot + 1) % time.length;
+        double t = (timestamp - time[slot]) / (time[next] - time[slot]);
+        return new Pose2d(
+                estimateX[slot] + t * (estimateX[next] - estimateX[slot]),
+                estimateY[slot] + t * (estimateY[next] - estimateY[slot]),
+                new Rotation2d(
+                        estimateHeading[slot]
+                                + t
+                                        * MathUtil.angleModulus(
+                                                estimateHeading[next] - estimateHeading[slot])));
+    }
+
+    /** @return - the standard deviation of the current estimate's x and y, in meters */
+    public synchronized double getXYStdDev() {
+        return size == 0 ? Math.sqrt(UNKNOWN_VARIANCE) : Math.sqrt(estimateXYVariance[head]);
+    }
+
+    /** @return - the standard deviation of the current estimate's heading, in radians */
+    public synchronized double getHeadingStdDev() {
+        return size == 0 ? Math.sqrt(UNKNOWN_VARIANCE) : Math.sqrt(estimateHeadingVariance[head]);
+    }
+
+    /** @return - how many odometry samples are in the history */
+    public synchronized int getHistoryLength() {
+        return size;
+    }
+
+    private int oldest() {
+        return (head - size + 1 + time.length) % time.length;
+    }
+
+    /** @return - the slot of the newest sample taken at or before the timestamp */
+    private int findSlot(double timestamp) {
+        // binary search over the ring buffer, counting from the oldest sample
+        int oldest = oldest();
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (time[(oldest + mid) % time.length] <= timestamp) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return (oldest + low) % time.length;
+    }
+
+    /**
+     * Recomputes a slot from the slot before it: the odometry driven between the two is applied
+     * to the previous estimate, then the slot's vision measurement (if any) is fused.
+     */
+    private void propagate(int slot) {
+        int previous = (slot - 1 + time.length) % time.length;
+
+        // the odometry motion, in the robot's frame at the previous sample
+        double dx = odometryX[slot] - odometryX[previous];
+        double dy = odometryY[slot] - odometryY[previous];
+        double dHeading = MathUtil.angleModulus(odometryHeading[slot] - odometryHeading[previous]);
+        double cos = Math.cos(odometryHeading[previous]);
+        double sin = Math.sin(odometryHeading[previous]);
+        double forward = cos * dx + sin * dy;
+        double left = -sin * dx + cos * dy;
+
+        // the same motion, from the previous estimate
+        cos = Math.cos(estimateHeading[previous]);
+        sin = Math.sin(estimateHeading[previous]);
+        priorX[slot] = estimateX[previous] + cos * forward - sin * left;
+        priorY[slot] = estimateY[previous] + sin * forward + cos * left;
+        priorHeading[slot] = MathUtil.angleModulus(estimateHeading[previous] + dHeading);
+        priorXYVariance[slot] =
+                estimateXYVariance[previous] + xyVariancePerMeter * Math.hypot(forward, left);
+        priorHeadingVariance[slot] =
+                estimateHeadingVariance[previous] + headingVariancePerRadian * Math.abs(dHeading);
+
+        copyPriorToEstimate(slot);
+        if (hasVision[slot]) {
+            fuse(slot);
+        }
+    }
+
+    private void copyPriorToEstimate(int slot) {
+        estimateX[slot] = priorX[slot];
+        estimateY[slot] = priorY[slot];
+        estimateHeading[slot] = priorHeading[slot];
+        estimateXYVariance[slot] = priorXYVariance[slot];
+        estimateHeadingVariance[slot] = priorHeadingVariance[slot];
+    }
+
+    /**
+     * Merges a second measurement into the one already stored in a slot, by inverse-variance
+     * weighting: the merged variance is 1 / (1 / a + 1 / b), the merged pose the variance-weighted
+     * mean of the two.
+     */
+    private void mergeVision(
+            int slot,
+            double x,
+            double y,
+            double heading,
+            double xyVariance,
+            double headingVariance) {
+        // the weight of the new measurement, the same gain a Kalman update would use
+        double xyWeight = visionXYVariance[slot] / (visionXYVariance[slot] + xyVariance);
+        double headingWeight =
+                visionHeadingVariance[slot] / (visionHeadingVariance[slot] + headingVariance);
+        // two measurements with no uncertainty, meet in the middle
+        if (Double.isNaN(xyWeight)) {
+            xyWeight = 0.5;
+        }
+        if (Double.isNaN(headingWeight)) {
+            headingWeight = 0.5;
+        }
+
+        visionX[slot] += xyWeight * (x - visionX[slot]);
+        visionY[slot] += xyWeight * (y - visionY[slot]);
+        visionHeading[slot] =
+                MathUtil.angleModulus(
+                        visionHeading[slot]
+                                + headingWeight
+                                        * MathUtil.angleModulus(heading - visionHeading[slot]));
+        visionXYVariance[slot] *= 1 - xyWeight;
+        visionHeadingVariance[slot] *= 1 - headingWeight;
+    }
+
+    /** Fuses the slot's vision measurement into the slot's prior. */
+    private void fuse(int slot) {
+        double xyGain = priorXYVariance[slot] / (priorXYVariance[slot] + visionXYVariance[slot]);
+        double headingGain =
+                priorHeadingVariance[slot]
+                        / (priorHeadingVariance[slot] + visionHeadingVariance[slot]);
+        // a measurement with no uncertainty against an estimate with none, trust the measurement
+        if (Double.isNaN(xyGain)) {
+            xyGain = 1;
+        }
+        if (Double.isNaN(headingGain)) {
+            headingGain = 1;
+        }
+
+        estimateX[slot] = priorX[slot] + xyGain * (visionX[slot] - priorX[slot]);
+        estimateY[slot] = priorY[slot] + xyGain * (visionY[slot] - priorY[slot]);
+        estimateHeading[slot] =
+                MathUtil.angleModulus(
+                        priorHeading[slot]
+                                + headingGain
+                                        * MathUtil.angleModulus(
+                                                visionHeading[slot] - priorHeading[slot]));
+        estimateXYVariance[slot] = (1 - xyGain) * priorXYVariance[slot];
+        estimateHeadingVariance[slot] = (1 - headingGain) * priorHeadingVariance[slot];
+    }
+}
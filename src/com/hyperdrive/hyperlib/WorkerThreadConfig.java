@@ -0,0 +1,192 @@
+/* Copyright (c) 2024 HyperDrive Robotics. All rights reserved. */
+/* This work is licensed under the terms of the MIT license */
+/* found in the root directory of this project. */
+
+package com.hyperdrive.hyperlib;
+
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.Threads;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The scheduling priority and CPU affinity of one of HyperLib's worker threads, i.e the {@link
+ * AprilTagFinder} vision thread or its subscriber threads.
+ *
+ * <p>The roboRIO only has two cores, and a vision thread at the default priority competes with the
+ * main robot loop for both of them. Giving the vision thread a positive nice value, and pinning it
+ * to the core the robot loop isn't using, keeps it from stealing time from control.
+ *
+ * <p>Real-time priorities go through WPILib's {@link Threads}, nice values and CPU affinity are
+ * only supported on Linux (which includes the roboRIO) and are set with renice and taskset. When a
+ * setting can't be applied, a warning is sent to the DriverStation and the thread keeps running
+ * with its old setting.
+ */
+public class WorkerThreadConfig {
+
+    /** Leaves the thread at the default priority, on any CPU. */
+    public static final WorkerThreadConfig DEFAULT = new WorkerThreadConfig(false, 0);
+
+    // the config last applied to each thread, so resetting to the defaults is only done when needed
+    private static final ThreadLocal<WorkerThreadConfig> appliedToThread = new ThreadLocal<>();
+
+    private final boolean realTime;
+    private final int priority;
+    private final int[] cpus;
+
+    /**
+     * Creates a new WorkerThreadConfig
+     *
+     * @param realTime - true to run the thread with a real-time (SCHED_FIFO) priority, be careful,
+     *     a busy real-time thread can starve everything below it, including the robot loop
+     * @param priority - the real-time priority (1 to 99) if realTime is true, else the nice value
+     *     (-20 to 19, higher is lower priority, 0 is the default)
+     * @param cpus - the CPUs the thread may run on, i.e 1 for the second core of the roboRIO, none
+     *     to allow any CPU
+     */
+    public WorkerThreadConfig(boolean realTime, int priority, int... cpus) {
+        if (realTime && (priority < 1 || priority > 99)) {
+            throw new IllegalArgumentException("real-time priority must be between 1 and 99");
+        }
+        if (!realTime && (priority < -20 || priority > 19)) {
+            throw new IllegalArgumentException("nice value must be between -20 and 19");
+        }
+        for (int cpu : cpus) {
+            if (cpu < 0) {
+                throw new IllegalArgumentException("CPU numbers must not be negative");
+            }
+        }
+        this.realTime = realTime;
+        this.priority = priority;
+        this.cpus = cpus.clone();
+    }
+
+    /** @return - true if the thread runs with a real-time priority */
+    public boolean isRealTime() {
+        return realTime;
+    }
+
+    /** @return - the real-time priority, or the nice value if the thread isn't real-time */
+    public int getPriority() {
+        return priority;
+    }
+
+    /** @return - the CPUs the thread may run on, empty for any CPU */
+    public int[] getCpus() {
+        return cpus.clone();
+    }
+
+    /**
+     * Applies this config to the calling thread. Worker threads call this on themselves, since
+     * priority and affinity can only be changed per thread. Every setting is applied, including
+     * the default ones, so switching from a pinned real-time config back to {@link #DEFAULT} undoes
+     * the pinning and the real-time priority.
+     *
+     * @return - true if every setting was applied
+     */
+    public boolean applyToCurrentThread() {
+        // a thread nothing was applied to yet is already at the defaults, so skip the syscalls and
+        // processes, and the warnings about them on platforms that can't run them
+        WorkerThreadConfig previous = appliedToThread.get();
+        if (previous == null && isDefault()) {
+            return true;
+        }
+        appliedToThread.set(this);
+
+        boolean applied = Threads.setCurrentThreadPriority(realTime, realTime ? priority : 0);
+        if (!applied) {
+            DriverStation.reportWarning(
+                    realTime
+                            ? "could not set real-time priority " + priority + " on " + threadName()
+                            : "could not clear the real-time priority of " + threadName(),
+                    false);
+        }
+
+        String tid = currentThreadId();
+        if (tid == null) {
+            if (!isDefault()) {
+                DriverStation.reportWarning(
+                        "thread priority and affinity are only supported on Linux, "
+                                + "ignoring them for "
+                                + threadName(),
+                        false);
+                return false;
+            }
+            return applied;
+        }
+        // a real-time thread ignores its nice value, reset it so it doesn't linger once the thread
+        // stops being real-time. The value is passed without -n, which makes it absolute in every
+        // renice, with -n POSIX and BusyBox renice take it as an increment instead
+        applied &= run("renice", String.valueOf(realTime ? 0 : priority), "-p", tid);
+        applied &= run("taskset", "-p", "-c", cpuList(), tid);
+        return applied;
+    }
+
+    private boolean isDefault() {
+        return !realTime && priority == 0 && cpus.length == 0;
+    }
+
+    /** @return - the CPUs for taskset, every online CPU if none were given */
+    private String cpuList() {
+        if (cpus.length == 0) {
+            return onlineCpus();
+        }
+        StringBuilder list = new StringBuilder();
+        for (int cpu : cpus) {
+            if (list.length() > 0) {
+                list.append(',');
+            }
+            list.append(cpu);
+        }
+        return list.toString();
+    }
+
+    private static String onlineCpus() {
+        // availableProcessors() only counts the CPUs the thread is pinned to, so ask the kernel
+        try {
+            return Files.readString(Path.of("/sys/devices/system/cpu/online")).trim();
+        } catch (IOException e) {
+            return "0-" + (Runtime.getRuntime().availableProcessors() - 1);
+        }
+    }
+
+    /** @return - the Linux thread ID of the calling thread, or null if it can't be found */
+    private static String currentThreadId() {
+        // /proc/thread-self links to /proc/<pid>/task/<tid> of whichever thread reads it
+        try {
+            Path link = Files.readSymbolicLink(Path.of("/proc/thread-self"));
+            return link.getFileName().toString();
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static boolean run(String... command) {
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            // the output is only interesting when the command fails
+            String output = new String(process.getInputStream().readAllBytes()).trim();
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                DriverStation.reportWarning(
+                        String.join(" ", command) + " failed for " + threadName() + ": " + output,
+                        false);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            DriverStation.reportWarning(
+                    "could not run " + command[0] + " for " + threadName() + ": " + e, false);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static String threadName() {
+        return "thread '" + Thread.currentThread().getName() + "'";
+    }
+}
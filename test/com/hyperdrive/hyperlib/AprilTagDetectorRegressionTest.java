@@ -0,0 +1,312 @@
+/* Copyright (c) 2024 HyperDrive Robotics. All rights reserved. */
+/* This work is licensed under the terms of the MIT license */
+/* found in the root directory of this project. */
+
+package com.hyperdrive.hyperlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import edu.wpi.first.apriltag.AprilTagDetection;
+import edu.wpi.first.apriltag.AprilTagDetector;
+import edu.wpi.first.apriltag.AprilTagPoseEstimate;
+import edu.wpi.first.apriltag.AprilTagPoseEstimator;
+import edu.wpi.first.cscore.OpenCvLoader;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.geometry.Transform3d;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Mat;
+
+/**
+ * Runs the detector configuration {@link AprilTagFinder} uses over synthetic frames from {@link
+ * SyntheticTagScene}, and checks detection rate, pose error against the rendered pose, and
+ * frames per second (the median of several timed passes).
+ *
+ * <p>On turned tags the rotation error is that of the pose {@link AprilTagFinder} publishes, from
+ * {@link AprilTagPoseEstimator#estimate}. A nearly face-on tag is ambiguous between two mirrored
+ * poses, on those the error is that of whichever candidate pose is closer to the truth, picking
+ * the wrong one there is the pose estimator's problem, not the detector's.
+ *
+ * <p>The thresholds are deliberately loose, they are meant to catch a detector setting that breaks
+ * detection or halves throughput, not to benchmark the machine running the tests. Every setting's
+ * numbers are printed, compare them before and after changing a detector parameter.
+ */
+public class AprilTagDetectorRegressionTest {
+
+    private static final String FAMILY = "tag36h11";
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int TAG_ID = 7;
+
+    // 6.5 inch tags, seen through a ~60 degree wide camera
+    private static final AprilTagPoseEstimator.Config CAMERA =
+            new AprilTagPoseEstimator.Config(0.1651, 550, 550, WIDTH / 2.0, HEIGHT / 2.0);
+
+    private static final double[] DISTANCES = {0.5, 0.75, 1.0};
+    private static final double[] YAWS = {0, 20, -20, 35};
+    private static final double[] OFFSETS = {0, 0.15, -0.15};
+
+    // the range FRC robots actually see tags at
+    private static final double[] FAR_DISTANCES = {2.0, 3.0, 4.0};
+    private static final double[] FAR_YAWS = {0, 20, -20};
+    private static final double[] FAR_OFFSETS = {0, 0.3};
+
+    // a 6.5 inch tag at 2 m is ~23 pixels wide after decimation, its outline then has at most
+    // ~360 edge pixels, under the finder's minClusterPixels of 400. The finder config stops
+    // detecting at ~1.3 m, so no tag at or beyond this distance is detected.
+    private static final double FINDER_CUTOFF_DISTANCE = 2.0;
+
+    private static final int TIMED_PASSES = 9;
+
+    private static final List<Mat> frames = new ArrayList<>();
+
+    private static SyntheticTagScene scene;
+
+    @BeforeClass
+    public static void loadOpenCv() throws IOException {
+        OpenCvLoader.forceLoad();
+        scene = new SyntheticTagScene(FAMILY, WIDTH, HEIGHT, CAMERA);
+    }
+
+    @AfterClass
+    public static void releaseFrames() {
+        for (Mat frame : frames) {
+            frame.release();
+        }
+        frames.clear();
+    }
+
+    // below this the two candidate poses of a tag are too close to tell apart reliably
+    private static final double AMBIGUOUS_YAW_DEGREES = 20;
+
+    /** A single rendered frame and the pose it was rendered at */
+    private static class Scene {
+        final Transform3d truth;
+        final double yawDegrees;
+        final Mat frame;
+
+        Scene(Transform3d truth, double yawDegrees, Mat frame) {
+            this.truth = truth;
+            this.yawDegrees = yawDegrees;
+            this.frame = frame;
+            frames.add(frame);
+        }
+    }
+
+    /** What a detector setting achieved over a set of scenes */
+    private static class Result {
+        int detected;
+        int total;
+        double maxDistanceError;
+        double maxRotationErrorDegrees;
+        double framesPerSecond;
+
+        double detectionRate() {
+            return (double) detected / total;
+        }
+    }
+
+    private static List<Scene> render(double blurSigma, double noiseStdDev) {
+        return render(DISTANCES, YAWS, OFFSETS, blurSigma, noiseStdDev);
+    }
+
+    private static List<Scene> render(
+            double[] distances,
+            double[] yaws,
+            double[] offsets,
+            double blurSigma,
+            double noiseStdDev) {
+        List<Scene> scenes = new ArrayList<>();
+        long seed = 0;
+        for (double distance : distances) {
+            for (double yaw : yaws) {
+                for (double offset : offsets) {
+                    Transform3d truth = SyntheticTagScene.poseAt(distance, yaw, offset);
+                    scenes.add(
+                            new Scene(
+                                    truth,
+                                    yaw,
+                                    scene.render(TAG_ID, truth, blurSigma, noiseStdDev, seed++)));
+                }
+            }
+        }
+        return scenes;
+    }
+
+    private static Result run(
+            String setting, List<Scene> scenes, Consumer<AprilTagDetector> tweak) {
+        AprilTagDetector detector = AprilTagFinder.createDetector(FAMILY);
+        AprilTagPoseEstimator poseEstimator = new AprilTagPoseEstimator(CAMERA);
+        Result result = new Result();
+        try {
+            tweak.accept(detector);
+            // the accuracy pass is untimed, and doubles as the warm-up for JIT and the detector
+            for (Scene s : scenes) {
+                result.total++;
+                for (AprilTagDetection detection : detector.detect(s.frame)) {
+                    if (detection.getId() != TAG_ID) {
+                        continue;
+                    }
+                    result.detected++;
+                    Transform3d estimate = poseEstimator.estimate(detection);
+                    double error =
+                            estimate.getTranslation().getDistance(s.truth.getTranslation());
+                    result.maxDistanceError = Math.max(result.maxDistanceError, error);
+
+                    double rotationError;
+                    if (Math.abs(s.yawDegrees) >= AMBIGUOUS_YAW_DEGREES) {
+                        // the finder publishes this pose, so a flip here is a real regression
+                        rotationError = rotationErrorDegrees(estimate, s.truth);
+                    } else {
+                        AprilTagPoseEstimate candidates =
+                                poseEstimator.estimateOrthogonalIteration(detection, 50);
+                        rotationError =
+                                Math.min(
+                                        rotationErrorDegrees(candidates.pose1, s.truth),
+                                        rotationErrorDegrees(candidates.pose2, s.truth));
+                    }
+                    result.maxRotationErrorDegrees =
+                            Math.max(result.maxRotationErrorDegrees, rotationError);
+                    break;
+                }
+            }
+
+            // a single pass is only a few milliseconds of work, take the median of several so a
+            // busy machine can't skew a single pass
+            double[] passFramesPerSecond = new double[TIMED_PASSES];
+            for (int pass = 0; pass < TIMED_PASSES; pass++) {
+                long start = System.nanoTime();
+                for (Scene s : scenes) {
+                    detector.detect(s.frame);
+                }
+                passFramesPerSecond[pass] = scenes.size() / ((System.nanoTime() - start) / 1e9);
+            }
+            Arrays.sort(passFramesPerSecond);
+            result.framesPerSecond = passFramesPerSecond[TIMED_PASSES / 2];
+        } finally {
+            detector.close();
+        }
+        System.out.println(
+                String.format(
+                        "%-28s detected %3d/%3d  max error %6.3f m %5.1f deg  %7.1f frames/sec",
+                        setting,
+                        result.detected,
+                        result.total,
+                        result.maxDistanceError,
+                        result.maxRotationErrorDegrees,
+                        result.framesPerSecond));
+        return result;
+    }
+
+    /** @return - the angle of the rotation between the estimated and the true pose, in degrees */
+    private static double rotationErrorDegrees(Transform3d estimate, Transform3d truth) {
+        Rotation3d difference = estimate.getRotation().minus(truth.getRotation());
+        return Math.toDegrees(difference.getAngle());
+    }
+
+    @Test
+    public void detectsCleanScenes() {
+        Result result = run("finder config, clean", render(0, 0), d -> {});
+
+        assertEquals(1.0, result.detectionRate(), 0.05);
+        // corners are exact in a clean render, so the pose should be too
+        assertTrue("max error " + result.maxDistanceError, result.maxDistanceError < 0.03);
+        assertTrue(
+                "max rotation error " + result.maxRotationErrorDegrees,
+                result.maxRotationErrorDegrees < 5);
+        assertTrue("frames/sec " + result.framesPerSecond, result.framesPerSecond > 10);
+    }
+
+    @Test
+    public void detectsBlurredNoisyScenes() {
+        Result result = run("finder config, blur + noise", render(1.2, 6), d -> {});
+
+        assertTrue("detection rate " + result.detectionRate(), result.detectionRate() > 0.85);
+        assertTrue("max error " + result.maxDistanceError, result.maxDistanceError < 0.06);
+        assertTrue(
+                "max rotation error " + result.maxRotationErrorDegrees,
+                result.maxRotationErrorDegrees < 10);
+        assertTrue("frames/sec " + result.framesPerSecond, result.framesPerSecond > 10);
+    }
+
+    @Test
+    public void decimationDoesNotSlowDetection() {
+        List<Scene> scenes = render(0.8, 3);
+        // the finder keeps the detector's default quadDecimate of 2
+        Result decimated = run("finder config, decimate 2", scenes, d -> {});
+        Result full =
+                run(
+                        "finder config, decimate 1",
+                        scenes,
+                        d -> {
+                            var config = d.getConfig();
+                            config.quadDecimate = 1.0f;
+                            d.setConfig(config);
+                        });
+
+        assertTrue(
+                "detection rate " + decimated.detectionRate(), decimated.detectionRate() > 0.85);
+        assertTrue("detection rate " + full.detectionRate(), full.detectionRate() > 0.85);
+        // decimation only speeds up the quad search, which isn't all of the work, so this only
+        // checks the medians show it isn't clearly slower, with room for a noisy machine
+        assertTrue(
+                "decimated "
+                        + decimated.framesPerSecond
+                        + " frames/sec, full "
+                        + full.framesPerSecond,
+                decimated.framesPerSecond > full.framesPerSecond * 0.8);
+    }
+
+    @Test
+    public void finderConfigStopsDetectingAtItsKnownCutoff() {
+        List<Scene> scenes = render(FAR_DISTANCES, FAR_YAWS, FAR_OFFSETS, 0.8, 3);
+        Result result = run("finder config, 2-4 m", scenes, d -> {});
+
+        // if this starts detecting, the range changed, update FINDER_CUTOFF_DISTANCE to match
+        assertEquals(
+                "tags detected at or beyond " + FINDER_CUTOFF_DISTANCE + " m",
+                0,
+                result.detected);
+    }
+
+    @Test
+    public void detectsFarScenesWithoutTheClusterLimit() {
+        List<Scene> scenes = render(FAR_DISTANCES, FAR_YAWS, FAR_OFFSETS, 0.8, 3);
+        // the apriltag library's own default, to check range and accuracy past the cutoff
+        Result result =
+                run(
+                        "min cluster 5, 2-4 m",
+                        scenes,
+                        d -> {
+                            var params = d.getQuadThresholdParameters();
+                            params.minClusterPixels = 5;
+                            d.setQuadThresholdParameters(params);
+                        });
+
+        // a tag at 4 m is only ~3 pixels per cell, some noisy frames don't decode
+        assertTrue("detection rate " + result.detectionRate(), result.detectionRate() > 0.75);
+        // a pixel of corner error is worth a lot more at 4 m than at 1 m. The rotation of a tag
+        // this small is ambiguous even when it is turned, so it is printed but not checked.
+        assertTrue("max error " + result.maxDistanceError, result.maxDistanceError < 0.2);
+    }
+
+    @Test
+    public void rejectsFramesWithoutTags() {
+        Mat empty = scene.renderEmpty(6, 42);
+        frames.add(empty);
+        AprilTagDetector detector = AprilTagFinder.createDetector(FAMILY);
+        try {
+            assertEquals(0, detector.detect(empty).length);
+        } finally {
+            detector.close();
+        }
+    }
+}
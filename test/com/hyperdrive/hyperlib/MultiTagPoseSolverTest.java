@@ -0,0 +1,203 @@
+/* Copyright (c) 2024 HyperDrive Robotics. All rights reserved. */
+/* This work is licensed under the terms of the MIT license */
+/* found in the root directory of this project. */
+
+package com.hyperdrive.hyperlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import edu.wpi.first.apriltag.AprilTag;
+import edu.wpi.first.apriltag.AprilTagDetection;
+import edu.wpi.first.apriltag.AprilTagFieldLayout;
+import edu.wpi.first.apriltag.AprilTagPoseEstimator;
+import edu.wpi.first.cscore.OpenCvLoader;
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.geometry.Transform3d;
+import edu.wpi.first.math.geometry.Translation3d;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Round-trips {@link MultiTagPoseSolver}: tag corners are projected into the image from a known
+ * robot pose, and the solver has to find that pose again.
+ *
+ * <p>The corners are put in detector order by where they land in the image (bottom left, bottom
+ * right, top right, top left), not by the solver's own corner table, so a wrong corner order, axis
+ * swap or inversion in the solver shows up as a wrong pose.
+ */
+public class MultiTagPoseSolverTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final double TAG_SIZE = 0.1651;
+    private static final AprilTagPoseEstimator.Config CAMERA =
+            new AprilTagPoseEstimator.Config(TAG_SIZE, 550, 550, WIDTH / 2.0, HEIGHT / 2.0);
+
+    // the camera sits 0.3 m ahead of the robot's center, 0.4 m up, tilted slightly upwards
+    private static final Transform3d ROBOT_TO_CAMERA =
+            new Transform3d(new Translation3d(0.3, 0, 0.4), new Rotation3d(0, -0.1, 0));
+
+    private static final double EPSILON = 1e-3;
+
+    private static AprilTagFieldLayout layout;
+
+    @BeforeClass
+    public static void loadOpenCv() throws IOException {
+        OpenCvLoader.forceLoad();
+        // three tags on the far wall, facing back down the field, the third at another height
+        // and angle so the corners aren't all in one plane
+        layout =
+                new AprilTagFieldLayout(
+                        List.of(
+                                new AprilTag(
+                                        1,
+                                        new Pose3d(
+                                                new Translation3d(5, 2, 0.5),
+                                                new Rotation3d(0, 0, Math.PI))),
+                                new AprilTag(
+                                        2,
+                                        new Pose3d(
+                                                new Translation3d(5, 3, 0.5),
+                                                new Rotation3d(0, 0, Math.PI))),
+                                new AprilTag(
+                                        3,
+                                        new Pose3d(
+                                                new Translation3d(4.5, 4, 0.8),
+                                                new Rotation3d(0, 0, Math.toRadians(-150))))),
+                        16.5,
+                        8.2);
+    }
+
+    /** @return - the detection of a field tag as the camera would see it from the robot pose */
+    private static AprilTagDetection detect(int id, Pose3d robotPose) {
+        Pose3d cameraPose = robotPose.transformBy(ROBOT_TO_CAMERA);
+        Pose3d tagPose = layout.getTagPose(id).orElseThrow();
+        double half = TAG_SIZE / 2;
+
+        List<double[]> pixels = new ArrayList<>();
+        for (double y : new double[] {-half, half}) {
+            for (double z : new double[] {-half, half}) {
+                Translation3d corner =
+                        new Translation3d(0, y, z)
+                                .rotateBy(tagPose.getRotation())
+                                .plus(tagPose.getTranslation());
+                // the corner in the camera's frame, the camera looks down x, with y left, z up
+                Translation3d seen =
+                        new Pose3d(corner, new Rotation3d())
+                                .relativeTo(cameraPose)
+                                .getTranslation();
+                assertTrue("tag " + id + " is behind the camera", seen.getX() > 0);
+                double u = CAMERA.cx - CAMERA.fx * seen.getY() / seen.getX();
+                double v = CAMERA.cy - CAMERA.fy * seen.getZ() / seen.getX();
+                assertTrue("tag " + id + " is out of frame", u >= 0 && u < WIDTH);
+                assertTrue("tag " + id + " is out of frame", v >= 0 && v < HEIGHT);
+                pixels.add(new double[] {u, v});
+            }
+        }
+
+        // the detector's order, by image position: bottom left, bottom right, top right, top left
+        pixels.sort(Comparator.comparingDouble((double[] p) -> p[1]).reversed());
+        List<double[]> bottom = new ArrayList<>(pixels.subList(0, 2));
+        List<double[]> top = new ArrayList<>(pixels.subList(2, 4));
+        bottom.sort(Comparator.comparingDouble(p -> p[0]));
+        top.sort(Comparator.comparingDouble((double[] p) -> p[0]).reversed());
+        double[] corners = new double[8];
+        double centerX = 0;
+        double centerY = 0;
+        int i = 0;
+        for (double[] p : List.of(bottom.get(0), bottom.get(1), top.get(0), top.get(1))) {
+            corners[i++] = p[0];
+            corners[i++] = p[1];
+            centerX += p[0] / 4;
+            centerY += p[1] / 4;
+        }
+        return new AprilTagDetection(
+                "tag36h11",
+                id,
+                0,
+                100,
+                new double[] {1, 0, 0, 0, 1, 0, 0, 0, 1},
+                centerX,
+                centerY,
+                corners);
+    }
+
+    private static void assertPose(Pose3d expected, Pose3d actual) {
+        assertNotNull(actual);
+        assertEquals(0, expected.getTranslation().getDistance(actual.getTranslation()), EPSILON);
+        assertEquals(0, expected.getRotation().minus(actual.getRotation()).getAngle(), EPSILON);
+    }
+
+    @Test
+    public void solvesTheRobotPoseFromSeveralTags() {
+        Pose3d robotPose = new Pose3d(2, 2.6, 0, new Rotation3d(0, 0, Math.toRadians(10)));
+        try (MultiTagPoseSolver solver =
+                new MultiTagPoseSolver(layout, ROBOT_TO_CAMERA.inverse(), CAMERA, 5.0)) {
+            Pose3d solved =
+                    solver.solve(
+                            new AprilTagDetection[] {
+                                detect(1, robotPose), detect(2, robotPose), detect(3, robotPose)
+                            });
+
+            assertPose(robotPose, solved);
+            assertEquals(3, solver.getLastTagCount());
+            assertTrue(solver.getLastReprojectionError() < 0.1);
+        }
+    }
+
+    @Test
+    public void warmStartedSolveFollowsTheRobot() {
+        Pose3d first = new Pose3d(2, 2.5, 0, new Rotation3d(0, 0, Math.toRadians(5)));
+        // one frame later, the robot has driven a little and turned a little
+        Pose3d second = new Pose3d(2.05, 2.52, 0, new Rotation3d(0, 0, Math.toRadians(7)));
+        try (MultiTagPoseSolver solver =
+                new MultiTagPoseSolver(layout, ROBOT_TO_CAMERA.inverse(), CAMERA, 5.0)) {
+            assertPose(
+                    first,
+                    solver.solve(new AprilTagDetection[] {detect(1, first), detect(2, first)}));
+            assertPose(
+                    second,
+                    solver.solve(new AprilTagDetection[] {detect(1, second), detect(2, second)}));
+            assertEquals(2, solver.getLastTagCount());
+        }
+    }
+
+    @Test
+    public void ignoresTagsThatArentOnTheLayout() {
+        Pose3d robotPose = new Pose3d(2, 2.5, 0, new Rotation3d());
+        AprilTagDetection known = detect(1, robotPose);
+        double[] corners = new double[8];
+        for (int i = 0; i < 4; i++) {
+            corners[i * 2] = known.getCornerX(i) + 100;
+            corners[i * 2 + 1] = known.getCornerY(i);
+        }
+        AprilTagDetection unknown =
+                new AprilTagDetection(
+                        "tag36h11",
+                        9,
+                        0,
+                        100,
+                        new double[] {1, 0, 0, 0, 1, 0, 0, 0, 1},
+                        known.getCenterX() + 100,
+                        known.getCenterY(),
+                        corners);
+
+        try (MultiTagPoseSolver solver =
+                new MultiTagPoseSolver(layout, ROBOT_TO_CAMERA.inverse(), CAMERA, 5.0)) {
+            assertNull(solver.solve(new AprilTagDetection[] {unknown}));
+            assertEquals(0, solver.getLastTagCount());
+
+            assertPose(robotPose, solver.solve(new AprilTagDetection[] {known, unknown}));
+            assertEquals(1, solver.getLastTagCount());
+        }
+    }
+}
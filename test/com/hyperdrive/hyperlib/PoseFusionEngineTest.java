@@ -0,0 +1,123 @@
+/* Copyright (c) 2024 HyperDrive Robotics. All rights reserved. */
+/* This work is licensed under the terms of the MIT license */
+/* found in the root directory of this project. */
+
+package com.hyperdrive.hyperlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+
+import org.junit.Test;
+
+public class PoseFusionEngineTest {
+
+    private static final double PERIOD = 0.02;
+    private static final double EPSILON = 1e-3;
+
+    /** Drives straight along x, odometry only sees 90% of the true speed of 1 m/s. */
+    private static PoseFusionEngine driveStraight(int samples) {
+        PoseFusionEngine engine = new PoseFusionEngine(100, 0.1, 0.01);
+        engine.resetPose(new Pose2d());
+        for (int i = 0; i < samples; i++) {
+            engine.addOdometry(i * PERIOD, 0.9 * i * PERIOD, 0, 0);
+        }
+        return engine;
+    }
+
+    @Test
+    public void followsOdometryFromTheResetPose() {
+        PoseFusionEngine engine = new PoseFusionEngine(10, 0.1, 0.01);
+        engine.resetPose(new Pose2d(1, 2, Rotation2d.fromDegrees(90)));
+        engine.addOdometry(0.00, 5, 5, 0);
+        engine.addOdometry(0.02, 6, 5, 0);
+
+        // one meter forward in odometry's frame is one meter forward from the reset pose
+        Pose2d estimate = engine.getEstimate();
+        assertEquals(1, estimate.getX(), EPSILON);
+        assertEquals(3, estimate.getY(), EPSILON);
+        assertEquals(90, estimate.getRotation().getDegrees(), EPSILON);
+    }
+
+    @Test
+    public void latentMeasurementIsReplayedToThePresent() {
+        PoseFusionEngine engine = driveStraight(51);
+
+        // a near-perfect measurement of the true pose, half a second old
+        assertTrue(
+                engine.addVisionMeasurement(
+                        0.5, new Pose2d(0.5, 0, new Rotation2d()), 1e-4, 1e-4));
+
+        // the true pose at 0.5 s, plus what odometry saw in the half second since
+        assertEquals(0.5 + 0.9 * 0.5, engine.getEstimate().getX(), EPSILON);
+        assertEquals(0.5, engine.getEstimateAt(0.5).getX(), EPSILON);
+    }
+
+    @Test
+    public void measurementBetweenSamplesIsMovedToTheSample() {
+        PoseFusionEngine engine = driveStraight(51);
+
+        // captured halfway between the samples at 0.50 and 0.52 s
+        engine.addVisionMeasurement(0.51, new Pose2d(0.51, 0, new Rotation2d()), 1e-4, 1e-4);
+
+        assertEquals(0.51 + 0.9 * 0.49, engine.getEstimate().getX(), EPSILON);
+    }
+
+    @Test
+    public void outOfOrderMeasurementsAreBothKept() {
+        PoseFusionEngine inOrder = driveStraight(51);
+        inOrder.addVisionMeasurement(0.4, new Pose2d(0.4, 0.1, new Rotation2d()), 0.05, 0.05);
+        inOrder.addVisionMeasurement(0.8, new Pose2d(0.8, 0.1, new Rotation2d()), 0.05, 0.05);
+
+        PoseFusionEngine outOfOrder = driveStraight(51);
+        outOfOrder.addVisionMeasurement(0.8, new Pose2d(0.8, 0.1, new Rotation2d()), 0.05, 0.05);
+        outOfOrder.addVisionMeasurement(0.4, new Pose2d(0.4, 0.1, new Rotation2d()), 0.05, 0.05);
+
+        assertEquals(inOrder.getEstimate().getX(), outOfOrder.getEstimate().getX(), 1e-9);
+        assertEquals(inOrder.getEstimate().getY(), outOfOrder.getEstimate().getY(), 1e-9);
+    }
+
+    @Test
+    public void measurementsInTheSameSlotAreMerged() {
+        // two cameras seeing the robot at the same moment, half a meter apart sideways
+        PoseFusionEngine twoCameras = driveStraight(51);
+        assertTrue(
+                twoCameras.addVisionMeasurement(
+                        0.5, new Pose2d(0.5, 0.25, new Rotation2d()), 0.05, 0.05));
+        assertTrue(
+                twoCameras.addVisionMeasurement(
+                        0.5, new Pose2d(0.5, -0.25, new Rotation2d()), 0.05, 0.05));
+
+        // equally certain, so the same as one measurement in the middle, with half the variance
+        double stdDev = 0.05 / Math.sqrt(2);
+        PoseFusionEngine merged = driveStraight(51);
+        merged.addVisionMeasurement(0.5, new Pose2d(0.5, 0, new Rotation2d()), stdDev, stdDev);
+
+        assertEquals(merged.getEstimate().getX(), twoCameras.getEstimate().getX(), 1e-9);
+        assertEquals(merged.getEstimate().getY(), twoCameras.getEstimate().getY(), 1e-9);
+        assertEquals(merged.getXYStdDev(), twoCameras.getXYStdDev(), 1e-9);
+    }
+
+    @Test
+    public void measurementOlderThanTheHistoryIsRejected() {
+        PoseFusionEngine engine = driveStraight(150);
+
+        // only the last 100 samples, from 1 s on, are kept
+        assertEquals(100, engine.getHistoryLength());
+        assertFalse(engine.addVisionMeasurement(0.5, new Pose2d(), 0.1, 0.1));
+        assertTrue(engine.addVisionMeasurement(1.5, new Pose2d(), 0.1, 0.1));
+    }
+
+    @Test
+    public void measurementShrinksUncertainty() {
+        PoseFusionEngine engine = driveStraight(51);
+        double before = engine.getXYStdDev();
+
+        engine.addVisionMeasurement(0.9, new Pose2d(0.9, 0, new Rotation2d()), 0.05, 0.05);
+
+        assertTrue(engine.getXYStdDev() < before);
+    }
+}
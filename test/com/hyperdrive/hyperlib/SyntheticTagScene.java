@@ -0,0 +1,197 @@
+/* Copyright (c) 2024 HyperDrive Robotics. All rights reserved. */
+/* This work is licensed under the terms of the MIT license */
+/* found in the root directory of this project. */
+
+package com.hyperdrive.hyperlib;
+
+import edu.wpi.first.apriltag.AprilTag;
+import edu.wpi.first.apriltag.AprilTagPoseEstimator;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.geometry.Transform3d;
+import edu.wpi.first.math.geometry.Translation3d;
+import edu.wpi.first.util.RawFrame;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Renders grayscale camera frames of a single AprilTag at a known pose, for testing the detector
+ * without a camera.
+ *
+ * <p>Poses use the same convention as {@link AprilTagPoseEstimator}: the camera looks down +z, with
+ * +x right and +y down in the image, and the tag's own x and y axes point right and down across its
+ * face. A tag straight ahead of the camera, facing it, has no rotation.
+ */
+class SyntheticTagScene {
+
+    // every tag image is scaled up by this much before warping, so edges stay sharp
+    private static final int TAG_SCALE = 32;
+    private static final double BACKGROUND = 180;
+
+    private final int width;
+    private final int height;
+    private final AprilTagPoseEstimator.Config camera;
+    private final String family;
+
+    /**
+     * @param family - the family to render, "tag36h11" or "tag16h5"
+     * @param width - the width of the frame in pixels
+     * @param height - the height of the frame in pixels
+     * @param camera - the tag size and camera intrinsics to render with
+     */
+    SyntheticTagScene(
+            String family, int width, int height, AprilTagPoseEstimator.Config camera) {
+        if (!family.equals("tag36h11") && !family.equals("tag16h5")) {
+            throw new IllegalArgumentException("can not render tag family " + family);
+        }
+        this.family = family;
+        this.width = width;
+        this.height = height;
+        this.camera = camera;
+    }
+
+    /**
+     * Returns the pose of a tag at a distance straight ahead of the camera, turned about its
+     * vertical axis
+     *
+     * @param distance - the distance from the camera to the tag's center, in meters
+     * @param yawDegrees - how far the tag is turned away from the camera
+     * @param offsetX - how far right of the image center the tag is, in meters
+     * @return - the camera-to-tag transform
+     */
+    static Transform3d poseAt(double distance, double yawDegrees, double offsetX) {
+        return new Transform3d(
+                new Translation3d(offsetX, 0, distance),
+                new Rotation3d(0, Math.toRadians(yawDegrees), 0));
+    }
+
+    /**
+     * Renders a frame
+     *
+     * @param id - the ID of the tag
+     * @param cameraToTag - the pose of the tag, see {@link #poseAt(double, double, double)}
+     * @param blurSigma - the sigma of the gaussian blur, in pixels, 0 for none
+     * @param noiseStdDev - the standard deviation of the added pixel noise, 0 for none
+     * @param seed - the seed of the noise, so every run renders the same frame
+     * @return - the 8-bit grayscale frame, the caller must release it
+     */
+    Mat render(
+            int id, Transform3d cameraToTag, double blurSigma, double noiseStdDev, long seed) {
+        Mat tag = tagImage(id);
+
+        // the black square of the tag is tagSize wide, the generated image adds a one pixel white
+        // border around it
+        int cells = tag.cols() / TAG_SCALE;
+        double half = camera.tagSize / 2 * cells / (cells - 2);
+        Point[] corners = {
+            project(cameraToTag, -half, -half),
+            project(cameraToTag, half, -half),
+            project(cameraToTag, half, half),
+            project(cameraToTag, -half, half)
+        };
+        double side = tag.cols();
+        MatOfPoint2f src =
+                new MatOfPoint2f(
+                        new Point(0, 0),
+                        new Point(side, 0),
+                        new Point(side, side),
+                        new Point(0, side));
+        MatOfPoint2f dst = new MatOfPoint2f(corners);
+        Mat homography = Imgproc.getPerspectiveTransform(src, dst);
+
+        Mat frame = new Mat(height, width, CvType.CV_8UC1, new Scalar(BACKGROUND));
+        Imgproc.warpPerspective(
+                tag,
+                frame,
+                homography,
+                frame.size(),
+                Imgproc.INTER_LINEAR,
+                Core.BORDER_TRANSPARENT);
+
+        if (blurSigma > 0) {
+            Imgproc.GaussianBlur(frame, frame, new Size(0, 0), blurSigma);
+        }
+        if (noiseStdDev > 0) {
+            addNoise(frame, noiseStdDev, seed);
+        }
+
+        tag.release();
+        src.release();
+        dst.release();
+        homography.release();
+        return frame;
+    }
+
+    /**
+     * Renders a frame without a tag in it
+     *
+     * @param noiseStdDev - the standard deviation of the added pixel noise, 0 for none
+     * @param seed - the seed of the noise, so every run renders the same frame
+     * @return - the 8-bit grayscale frame, the caller must release it
+     */
+    Mat renderEmpty(double noiseStdDev, long seed) {
+        Mat frame = new Mat(height, width, CvType.CV_8UC1, new Scalar(BACKGROUND));
+        if (noiseStdDev > 0) {
+            addNoise(frame, noiseStdDev, seed);
+        }
+        return frame;
+    }
+
+    private Point project(Transform3d cameraToTag, double x, double y) {
+        Translation3d point =
+                new Translation3d(x, y, 0)
+                        .rotateBy(cameraToTag.getRotation())
+                        .plus(cameraToTag.getTranslation());
+        return new Point(
+                camera.fx * point.getX() / point.getZ() + camera.cx,
+                camera.fy * point.getY() / point.getZ() + camera.cy);
+    }
+
+    private Mat tagImage(int id) {
+        RawFrame raw =
+                family.equals("tag36h11")
+                        ? AprilTag.generate36h11AprilTagImage(id)
+                        : AprilTag.generate16h5AprilTagImage(id);
+        int cells = raw.getWidth();
+        ByteBuffer data = raw.getDataByteBuffer();
+        byte[] pixels = new byte[cells * cells];
+        for (int row = 0; row < cells; row++) {
+            for (int col = 0; col < cells; col++) {
+                pixels[row * cells + col] = data.get(row * raw.getStride() + col);
+            }
+        }
+        raw.close();
+
+        Mat small = new Mat(cells, cells, CvType.CV_8UC1);
+        small.put(0, 0, pixels);
+        Mat tag = new Mat();
+        Imgproc.resize(
+                small,
+                tag,
+                new Size(cells * TAG_SCALE, cells * TAG_SCALE),
+                0,
+                0,
+                Imgproc.INTER_NEAREST);
+        small.release();
+        return tag;
+    }
+
+    private static void addNoise(Mat frame, double noiseStdDev, long seed) {
+        Random random = new Random(seed);
+        byte[] pixels = new byte[(int) frame.total()];
+        frame.get(0, 0, pixels);
+        for (int i = 0; i < pixels.length; i++) {
+            double value = (pixels[i] & 0xff) + random.nextGaussian() * noiseStdDev;
+            pixels[i] = (byte) Math.max(0, Math.min(255, Math.round(value)));
+        }
+        frame.put(0, 0, pixels);
+    }
+}